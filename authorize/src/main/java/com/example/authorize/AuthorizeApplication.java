@@ -0,0 +1,221 @@
+package com.example.authorize;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Builder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.adapter.MessageListenerAdapter;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+@SpringBootApplication
+public class AuthorizeApplication {
+
+    public static void main(String[] args) {
+        SpringApplication.run(AuthorizeApplication.class, args);
+    }
+
+}
+
+@Builder
+record PaymentDto(
+        @JsonProperty("id")
+        UUID id,
+        @JsonProperty(value = "payment_number")
+        Integer paymentNumber,
+        @JsonProperty("amount")
+        BigDecimal amount,
+        @JsonProperty("timestamp")
+        Instant timestamp,
+        @JsonProperty("payer_name")
+        String payerName,
+        String state
+
+) implements Serializable {
+    static long serialVersionUid = 1L;
+}
+
+@Builder
+record AuthorizeBatchRequest(
+        @JsonProperty("batch_id") UUID batchId,
+        @JsonProperty("payments") List<PaymentDto> payments,
+        Instant timestamp
+) { }
+
+@Builder
+record AuthorizeResult(
+        @JsonProperty("payment") PaymentDto paymentDto,
+        @JsonProperty("is_authorized") Boolean authorized
+) { }
+
+@Builder
+record AuthorizeBatchResponse(
+        @JsonProperty("batch_id") UUID batchId,
+        @JsonProperty("results") List<AuthorizeResult> results,
+        Instant timestamp
+) { }
+
+@Configuration
+@RequiredArgsConstructor
+class RabbitMessageConfig {
+
+    @Value("${app.props.queue-name}")
+    private String queue_name;
+
+    @Value("${app.props.exchange-name}")
+    private String exchange_name;
+
+    @Value("${app.props.queue-resp-name}")
+    private String queue_resp_name;
+
+    private final JsonConverterForMessageQueue messageConverter;
+
+    //sender
+    @Bean
+    public Queue queue(){
+        return new Queue(queue_resp_name);
+    }
+
+    @Bean
+    public TopicExchange topicExchange(){
+        return new TopicExchange(exchange_name);
+    }
+
+    @Bean
+    public Binding binding(Queue queue, TopicExchange topicExchange){
+        return BindingBuilder
+                .bind(queue)
+                .to(topicExchange)
+                .with("payment.stub.auth.#");
+    }
+
+    @Bean
+    public Queue requestQueue(){
+        // declared transient by payment core, the arguments have to match
+        return new Queue(queue_name, false);
+    }
+
+    //receiver
+    @Bean
+    public MessageListenerAdapter listenerAdapter(IncomeMessageHandler incomeMessageHandler){
+        MessageListenerAdapter mla = new MessageListenerAdapter();
+        mla.setDefaultListenerMethod("processAuthorize");
+        mla.setMessageConverter(messageConverter);
+        mla.setDelegate(incomeMessageHandler);
+        return mla;
+    }
+
+    @Bean
+    public SimpleMessageListenerContainer container(
+            ConnectionFactory connectionFactory,
+            MessageListenerAdapter messageListenerAdapter){
+
+        SimpleMessageListenerContainer container = new SimpleMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.setQueueNames(this.queue_name);
+        container.setMessageListener(messageListenerAdapter);
+        // a batch that cannot be read would otherwise be redelivered forever
+        container.setDefaultRequeueRejected(false);
+        return container;
+    }
+
+}
+
+/**
+ * Answers a whole batch of payments with one reply, so the cost of a round trip is shared by
+ * every payment in it.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+class IncomeMessageHandler{
+
+    @Value("${app.props.exchange-name}")
+    private String exchange_name;
+
+    @Value("${app.props.reply-routing-key}")
+    private String reply_routing_key;
+
+    private final RabbitTemplate rabbitTemplate;
+    public void processAuthorize(AuthorizeBatchRequest request){
+        log.info(
+                "Start process authorize batch "
+                + request.batchId()
+                + " At "
+                + request.timestamp()
+                + " With "
+                + request.payments().size()
+                + " payments"
+        );
+
+        try {
+            rabbitTemplate.convertAndSend(this.exchange_name, this.reply_routing_key, decide(request));
+        } catch (Exception ex){
+            log.error("A problem was raised on trying to sending message to RabbitMQ" + ex.getMessage());
+        }
+    }
+
+    public AuthorizeBatchResponse decide(AuthorizeBatchRequest request){
+        Random random = new Random();
+        return AuthorizeBatchResponse
+                .builder()
+                .batchId(request.batchId())
+                .timestamp(Instant.now())
+                .results(request
+                        .payments()
+                        .stream()
+                        .map(payment -> AuthorizeResult
+                                .builder()
+                                .paymentDto(payment)
+                                .authorized(random.nextInt(0, 10) > 0)
+                                .build())
+                        .toList())
+                .build();
+    }
+}
+
+@Component
+@RequiredArgsConstructor
+class JsonConverterForMessageQueue implements MessageConverter {
+
+    private final ObjectMapper objectMapper;
+    @Override
+    public Message toMessage(Object o, MessageProperties messageProperties) throws MessageConversionException {
+        try {
+            String json = objectMapper.writeValueAsString(o);
+            messageProperties.setContentType("application/json");
+            return new Message(json.getBytes(), messageProperties);
+        } catch (JsonProcessingException e) {
+            throw new MessageConversionException("Error converting object to JSON", e);
+        }
+
+    }
+    @Override
+    public AuthorizeBatchRequest fromMessage(Message message) throws MessageConversionException {
+        try {
+            return objectMapper.readValue(message.getBody(), AuthorizeBatchRequest.class);
+        } catch (IOException e) {
+            throw new MessageConversionException("Error converting JSON to object", e);
+        }
+    }
+}
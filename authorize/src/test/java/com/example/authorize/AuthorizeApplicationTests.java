@@ -0,0 +1,13 @@
+package com.example.authorize;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest
+class AuthorizeApplicationTests {
+
+    @Test
+    void contextLoads() {
+    }
+
+}
@@ -1,33 +1,91 @@
 package com.example.preauthorize;
 
+import com.example.startup.TrainingRunExit;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.Builder;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
 import org.springframework.amqp.core.*;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
 import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
 import org.springframework.amqp.rabbit.listener.adapter.MessageListenerAdapter;
+import org.springframework.amqp.rabbit.support.ListenerExecutionFailedException;
 import org.springframework.amqp.support.converter.MessageConversionException;
 import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.amqp.RabbitProperties;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.NestedExceptionUtils;
 import org.springframework.stereotype.Component;
+import org.springframework.util.ErrorHandler;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.rabbitmq.AcknowledgableDelivery;
+import reactor.rabbitmq.ConsumeOptions;
+import reactor.rabbitmq.CorrelableOutboundMessage;
+import reactor.rabbitmq.OutboundMessageResult;
+import reactor.rabbitmq.RabbitFlux;
+import reactor.rabbitmq.Receiver;
+import reactor.rabbitmq.ReceiverOptions;
+import reactor.rabbitmq.Sender;
+import reactor.rabbitmq.SenderOptions;
+import reactor.util.retry.Retry;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 @SpringBootApplication
+@Import(TrainingRunExit.class)
 public class PreAuthorizeApplication {
 
     public static void main(String[] args) {
@@ -58,6 +116,7 @@ record PaymentDto(
 record PreAuthorizeMessageRequest(
         @JsonProperty("request_id") UUID requestId,
         @JsonProperty("payment") PaymentDto paymentDto,
+        @JsonProperty("reply_routing_key") String replyRoutingKey,
         Instant timestamp
 ) { }
 
@@ -82,6 +141,12 @@ class RabbitMessageConfig {
     @Value("${app.props.queue-resp-name}")
     private String queue_resp_name;
 
+    @Value("${app.props.reactive.enabled:false}")
+    private boolean reactiveEnabled;
+
+    @Value("${app.props.lanes.consumers:8}")
+    private int laneConsumers;
+
     private final JsonConverterForMessageQueue messageConverter;
 
     //sender
@@ -104,10 +169,48 @@ class RabbitMessageConfig {
     }
 
 
+    @Bean
+    public Queue requestQueue(){
+        return new Queue(queue_name);
+    }
+
+    @Bean
+    public Declarables laneQueues(){
+        // bound to the request exchange by payment core, which publishes into the lanes
+        return new Declarables(
+                new Queue(PriorityLane.HIGH.queue(queue_name)),
+                new Queue(PriorityLane.BULK.queue(queue_name)));
+    }
+
+    //retry
+    @Bean
+    public RetryTopology retryTopology(
+            RabbitTemplate rabbitTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${app.props.retry.max-attempts:4}") int maxAttempts,
+            @Value("${app.props.retry.base-delay-ms:1000}") long baseDelayMillis){
+
+        return new RetryTopology(rabbitTemplate, meterRegistry, "pre_authorize", maxAttempts, baseDelayMillis);
+    }
+
+    @Bean
+    public Declarables retryDeclarables(RetryTopology retryTopology){
+        return retryTopology.declarables(Arrays
+                .stream(PriorityLane.values())
+                .map(lane -> lane.queue(this.queue_name))
+                .toArray(String[]::new));
+    }
+
     //receiver
     @Bean
     public MessageListenerAdapter listenerAdapter(IncomeMessageHandler incomeMessageHandler){
-        MessageListenerAdapter mla = new MessageListenerAdapter();
+        MessageListenerAdapter mla = new MessageListenerAdapter(){
+            @Override
+            protected Object[] buildListenerArguments(Object extractedMessage, Channel channel, Message message) {
+                // the handler needs the inbound timing headers to stamp them onto the reply
+                return new Object[]{extractedMessage, message.getMessageProperties()};
+            }
+        };
         mla.setDefaultListenerMethod("processPreAuthorize");
         mla.setMessageConverter(messageConverter);
         mla.setDelegate(incomeMessageHandler);
@@ -117,17 +220,662 @@ class RabbitMessageConfig {
     @Bean
     public SimpleMessageListenerContainer container(
             ConnectionFactory connectionFactory,
-            MessageListenerAdapter messageListenerAdapter){
+            MessageListenerAdapter messageListenerAdapter,
+            RetryTopology retryTopology,
+            WeightedLaneScheduler laneScheduler){
+
+        return laneContainer(PriorityLane.STANDARD, connectionFactory, messageListenerAdapter, retryTopology, laneScheduler);
+    }
+
+    @Bean
+    public SimpleMessageListenerContainer highLaneContainer(
+            ConnectionFactory connectionFactory,
+            MessageListenerAdapter messageListenerAdapter,
+            RetryTopology retryTopology,
+            WeightedLaneScheduler laneScheduler){
+
+        return laneContainer(PriorityLane.HIGH, connectionFactory, messageListenerAdapter, retryTopology, laneScheduler);
+    }
+
+    @Bean
+    public SimpleMessageListenerContainer bulkLaneContainer(
+            ConnectionFactory connectionFactory,
+            MessageListenerAdapter messageListenerAdapter,
+            RetryTopology retryTopology,
+            WeightedLaneScheduler laneScheduler){
+
+        return laneContainer(PriorityLane.BULK, connectionFactory, messageListenerAdapter, retryTopology, laneScheduler);
+    }
+
+    private SimpleMessageListenerContainer laneContainer(
+            PriorityLane lane,
+            ConnectionFactory connectionFactory,
+            MessageListenerAdapter messageListenerAdapter,
+            RetryTopology retryTopology,
+            WeightedLaneScheduler laneScheduler){
 
         SimpleMessageListenerContainer container = new SimpleMessageListenerContainer();
         container.setConnectionFactory(connectionFactory);
-        container.setQueueNames(this.queue_name);
-        container.setMessageListener(messageListenerAdapter);
+        container.setQueueNames(lane.queue(this.queue_name));
+        // consumers wait for a worker, a prefetch of one leaves the backlog on the broker instead of behind them
+        container.setConcurrentConsumers(laneConsumers);
+        container.setPrefetchCount(1);
+        container.setMessageListener((ChannelAwareMessageListener) (message, channel) -> {
+            laneScheduler.run(lane, () -> {
+                messageListenerAdapter.onMessage(message, channel);
+                return null;
+            });
+            laneScheduler.observed(lane, message.getMessageProperties());
+        });
+        container.setErrorHandler(retryTopology);
+        container.setAutoStartup(!reactiveEnabled);
         return container;
     }
 
 }
 
+/**
+ * Retry topology for listener failures. Attempt n waits in <prefix>.retry.n, whose TTL doubles per
+ * attempt, and is dead-lettered through a headers exchange back to the queue it was consumed from.
+ * After the last attempt, or at once when the body cannot be converted, it goes to <prefix>.parking-lot.
+ */
+@Slf4j
+class RetryTopology implements ErrorHandler {
+    static final String ATTEMPT_HEADER = "x-retry-attempt";
+    static final String QUEUE_HEADER = "x-retry-queue";
+    static final String REASON_HEADER = "x-failure-reason";
+
+    private final RabbitTemplate rabbitTemplate;
+    private final MeterRegistry meterRegistry;
+    private final String prefix;
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+
+    RetryTopology(
+            RabbitTemplate rabbitTemplate,
+            MeterRegistry meterRegistry,
+            String prefix,
+            int maxAttempts,
+            long baseDelayMillis){
+
+        this.rabbitTemplate = rabbitTemplate;
+        this.meterRegistry = meterRegistry;
+        this.prefix = prefix;
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+    }
+
+    public Declarables declarables(String... queues){
+        List<Declarable> declarables = new ArrayList<>();
+        declarables.add(new HeadersExchange(requeueExchange()));
+        for (int attempt = 1; attempt <= maxAttempts; attempt++){
+            declarables.add(QueueBuilder
+                    .durable(retryQueue(attempt))
+                    .ttl((int) (baseDelayMillis << (attempt - 1)))
+                    .deadLetterExchange(requeueExchange())
+                    .build());
+        }
+        declarables.add(QueueBuilder.durable(parkingLot()).build());
+        for (String queue : queues){
+            declarables.add(requeueBinding(queue));
+        }
+        return new Declarables(declarables);
+    }
+
+    public Binding requeueBinding(String queue){
+        return new Binding(
+                queue,
+                Binding.DestinationType.QUEUE,
+                requeueExchange(),
+                "",
+                Map.of("x-match", "all", QUEUE_HEADER, queue));
+    }
+
+    @Override
+    public void handleError(Throwable t) {
+        if (!(t instanceof ListenerExecutionFailedException failure) || failure.getFailedMessage() == null){
+            throw new AmqpRejectAndDontRequeueException("Listener failure without a message", t);
+        }
+        Message failed = failure.getFailedMessage();
+        MessageProperties properties = failed.getMessageProperties();
+        Throwable cause = NestedExceptionUtils.getMostSpecificCause(t);
+        String reason = cause.getClass().getSimpleName();
+        boolean poison = hasCause(t, MessageConversionException.class);
+        Object previous = properties.getHeader(ATTEMPT_HEADER);
+        int attempt = (previous instanceof Number number ? number.intValue() : 0) + 1;
+
+        String queue = properties.getHeader(QUEUE_HEADER) != null
+                ? properties.getHeader(QUEUE_HEADER).toString()
+                : properties.getConsumerQueue();
+        properties.setHeader(QUEUE_HEADER, queue);
+        properties.setHeader(REASON_HEADER, reason + ": " + cause.getMessage());
+        properties.setDeliveryMode(MessageDeliveryMode.PERSISTENT);
+
+        String destination;
+        String outcome;
+        if (poison || attempt > maxAttempts){
+            destination = parkingLot();
+            outcome = "parked";
+            log.error("Message from " + queue + " parked after " + (attempt - 1) + " retries " + reason);
+        } else {
+            properties.setHeader(ATTEMPT_HEADER, attempt);
+            destination = retryQueue(attempt);
+            outcome = "retry";
+            log.warn("Message from " + queue + " scheduled for retry " + attempt + " " + reason);
+        }
+        rabbitTemplate.send("", destination, failed);
+        meterRegistry
+                .counter("app.message.failures", "queue", queue, "reason", reason, "outcome", outcome)
+                .increment();
+        throw new AmqpRejectAndDontRequeueException("Message moved to " + destination, t);
+    }
+
+    private String requeueExchange(){
+        return prefix + ".retry.requeue";
+    }
+
+    private String retryQueue(int attempt){
+        return prefix + ".retry." + attempt;
+    }
+
+    String parkingLot(){
+        return prefix + ".parking-lot";
+    }
+
+    private static boolean hasCause(Throwable t, Class<? extends Throwable> type){
+        for (Throwable current = t; current != null; current = current.getCause()){
+            if (type.isInstance(current)){
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+
+enum JournalRecordType {
+    CREATE(1), CREATE_ASYNC(2), PRE_AUTH_REQUEST(3), PRE_AUTH_RESPONSE(4);
+
+    final byte code;
+
+    JournalRecordType(int code){
+        this.code = (byte) code;
+    }
+
+    static JournalRecordType of(byte code){
+        for (JournalRecordType type : values()){
+            if (type.code == code){
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown journal record type " + code);
+    }
+}
+
+record JournalRecord(
+        JournalRecordType type,
+        long offsetNanos,
+        byte[] payload
+) { }
+
+/**
+ * Capture of inbound traffic into an append-only memory-mapped file, enabled with
+ * app.props.journal.enabled. A header holds a magic number and the wall clock start; each record is
+ * its length, type, nanoseconds since the journal was opened and the JSON payload as it went over
+ * the wire. Writers reserve their range with one atomic add and write the length last, so a reader
+ * stops at the first empty record. Once the file is full further records are dropped and counted.
+ * Same format as TrafficJournal in payment core, so one replay tool reads both.
+ */
+@Component
+@Slf4j
+class TrafficJournal {
+    static final int MAGIC = 0x50594a4c;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 4 + 1 + 8;
+
+    private final ObjectMapper objectMapper;
+    private final Counter dropped;
+    private final AtomicLong position = new AtomicLong(HEADER_SIZE);
+
+    @Value("${app.props.journal.enabled:false}")
+    private boolean enabled;
+    @Value("${app.props.journal.dir:journal}")
+    private String dir;
+    @Value("${app.props.journal.size-mb:512}")
+    private int sizeMb;
+    @Value("${spring.application.name:pre_authorize}")
+    private String applicationName;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long startNanos;
+
+    TrafficJournal(ObjectMapper objectMapper, MeterRegistry meterRegistry){
+        this.objectMapper = objectMapper;
+        this.dropped = meterRegistry.counter("app.journal.dropped");
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled){
+            return;
+        }
+        Path file = Path.of(dir, applicationName + "-" + System.currentTimeMillis() + ".journal");
+        Files.createDirectories(file.getParent());
+        long size = Math.min(Integer.MAX_VALUE, (long) sizeMb << 20);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(0, MAGIC);
+        buffer.putLong(4, System.currentTimeMillis());
+        startNanos = System.nanoTime();
+        log.info("Capturing traffic into " + file.toAbsolutePath());
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    public void appendJson(JournalRecordType type, Object payload){
+        if (!enabled){
+            return;
+        }
+        try {
+            append(type, objectMapper.writeValueAsBytes(payload));
+        } catch (JsonProcessingException ex){
+            dropped.increment();
+        }
+    }
+
+    public void append(JournalRecordType type, byte[] payload){
+        if (!enabled){
+            return;
+        }
+        long offsetNanos = System.nanoTime() - startNanos;
+        int length = RECORD_HEADER_SIZE + payload.length;
+        long start = position.getAndAdd(length);
+        if (start + length + 4 > buffer.capacity()){
+            dropped.increment();
+            return;
+        }
+        int at = (int) start;
+        buffer.put(at + 4, type.code);
+        buffer.putLong(at + 5, offsetNanos);
+        buffer.put(at + RECORD_HEADER_SIZE, payload);
+        buffer.putInt(at, length);
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (channel == null){
+            return;
+        }
+        buffer.force();
+        channel.close();
+    }
+
+    static List<JournalRecord> read(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)){
+            MappedByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (data.getInt(0) != MAGIC){
+                throw new IOException(file + " is not a traffic journal");
+            }
+            List<JournalRecord> records = new ArrayList<>();
+            int at = HEADER_SIZE;
+            while (at + 4 <= data.capacity()){
+                int length = data.getInt(at);
+                if (length == 0){
+                    break;
+                }
+                byte[] payload = new byte[length - RECORD_HEADER_SIZE];
+                data.get(at + RECORD_HEADER_SIZE, payload);
+                records.add(new JournalRecord(JournalRecordType.of(data.get(at + 4)), data.getLong(at + 5), payload));
+                at += length;
+            }
+            // writers reserve in order but may finish out of order
+            records.sort(Comparator.comparingLong(JournalRecord::offsetNanos));
+            return records;
+        }
+    }
+}
+
+/**
+ * Timing headers of a pre-authorization round trip, see HopTrace in payment core. Trace headers of
+ * the request are copied onto the reply together with the instant it was received, the monotonic
+ * time spent handling it and the instant the reply left.
+ */
+final class HopTrace {
+    static final String TRACE_PREFIX = "x-trace-";
+    static final String HOP_PREFIX = "x-hop-";
+    static final String RECEIVED_AT = "x-hop-received-at";
+    static final String HANDLER_NANOS = "x-hop-handler-nanos";
+    static final String REPLIED_AT = "x-hop-replied-at";
+    static final String PUBLISHED_AT = "x-hop-published-at";
+
+    private HopTrace(){ }
+
+    static Map<String, Object> stamp(Map<String, Object> inbound, long receivedAt, long handlerNanos){
+        Map<String, Object> headers = new HashMap<>();
+        if (inbound != null){
+            inbound.forEach((name, value) -> {
+                if (name.startsWith(TRACE_PREFIX) || name.startsWith(HOP_PREFIX)){
+                    // the java client hands strings over as LongString
+                    headers.put(name, value instanceof Number ? value : value.toString());
+                }
+            });
+        }
+        headers.put(RECEIVED_AT, receivedAt);
+        headers.put(HANDLER_NANOS, handlerNanos);
+        headers.put(REPLIED_AT, System.currentTimeMillis());
+        return headers;
+    }
+}
+
+/**
+ * Priority lanes of pre-authorization requests, see PriorityLane in payment core. The standard lane
+ * is the original request queue, the others have their own queue on the same exchange.
+ */
+enum PriorityLane {
+    HIGH("pre_authorize_high"),
+    STANDARD(null),
+    BULK("pre_authorize_bulk");
+
+    private final String queue;
+
+    PriorityLane(String queue){
+        this.queue = queue;
+    }
+
+    String queue(String standardQueue){
+        return queue == null ? standardQueue : queue;
+    }
+}
+
+/**
+ * Weighted fair scheduling of pre-authorization work across lanes. Every lane has its own listener
+ * container whose consumer threads hand their message to this scheduler and wait for it, so the
+ * workers always pick among the requests currently waiting in every lane. The pick is a smooth
+ * weighted round robin over the lanes that have work: under load each lane gets its weight's share of
+ * the workers, an idle lane's share goes to the others and the bulk lane never starves.
+ */
+@Component
+@Slf4j
+class WeightedLaneScheduler implements SmartLifecycle {
+    private final Map<PriorityLane, Integer> weights = new EnumMap<>(PriorityLane.class);
+    private final Map<PriorityLane, ArrayDeque<LaneTask>> waiting = new EnumMap<>(PriorityLane.class);
+    private final Map<PriorityLane, Long> credit = new EnumMap<>(PriorityLane.class);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final MeterRegistry meterRegistry;
+    private final int workers;
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running;
+
+    WeightedLaneScheduler(
+            MeterRegistry meterRegistry,
+            @Value("${app.props.lanes.workers:4}") int workers,
+            @Value("${app.props.lanes.weight.high:8}") int highWeight,
+            @Value("${app.props.lanes.weight.standard:3}") int standardWeight,
+            @Value("${app.props.lanes.weight.bulk:1}") int bulkWeight){
+
+        this.meterRegistry = meterRegistry;
+        this.workers = workers;
+        weights.put(PriorityLane.HIGH, highWeight);
+        weights.put(PriorityLane.STANDARD, standardWeight);
+        weights.put(PriorityLane.BULK, bulkWeight);
+        for (PriorityLane lane : PriorityLane.values()){
+            waiting.put(lane, new ArrayDeque<>());
+            credit.put(lane, 0L);
+            Gauge.builder("pre_authorize.lane.waiting", this, scheduler -> scheduler.waiting(lane))
+                    .tag("lane", lane.name())
+                    .register(meterRegistry);
+        }
+    }
+
+    int weight(PriorityLane lane){
+        return weights.get(lane);
+    }
+
+    /**
+     * Runs the work on a scheduler worker once it is the lane's turn, and rethrows whatever it threw
+     * so the listener container sees the failure as its own.
+     */
+    public void run(PriorityLane lane, Callable<Void> work) throws Exception {
+        try {
+            enqueue(lane, work).done().get();
+        } catch (ExecutionException ex){
+            if (ex.getCause() instanceof Exception cause){
+                throw cause;
+            }
+            throw ex;
+        }
+    }
+
+    LaneTask enqueue(PriorityLane lane, Callable<Void> work){
+        LaneTask task = new LaneTask(lane, work, System.nanoTime(), new CompletableFuture<>());
+        lock.lock();
+        try {
+            waiting.get(lane).add(task);
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        return task;
+    }
+
+    LaneTask next() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true){
+                long totalWeight = 0;
+                PriorityLane picked = null;
+                for (PriorityLane lane : PriorityLane.values()){
+                    if (waiting.get(lane).isEmpty()){
+                        continue;
+                    }
+                    totalWeight += weights.get(lane);
+                    long raised = credit.get(lane) + weights.get(lane);
+                    credit.put(lane, raised);
+                    if (picked == null || raised > credit.get(picked)){
+                        picked = lane;
+                    }
+                }
+                if (picked != null){
+                    credit.put(picked, credit.get(picked) - totalWeight);
+                    return waiting.get(picked).poll();
+                }
+                // nothing waiting: forget the history so a lane cannot bank credit while idle
+                credit.replaceAll((lane, value) -> 0L);
+                workAvailable.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work(){
+        while (running){
+            LaneTask task;
+            try {
+                task = next();
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+                return;
+            }
+            Tags lane = Tags.of("lane", task.lane().name());
+            meterRegistry.timer("pre_authorize.lane.wait", lane)
+                    .record(System.nanoTime() - task.enqueuedAt(), TimeUnit.NANOSECONDS);
+            long start = System.nanoTime();
+            try {
+                task.work().call();
+                task.done().complete(null);
+            } catch (Exception ex){
+                task.done().completeExceptionally(ex);
+            } finally {
+                meterRegistry.timer("pre_authorize.lane.service", lane)
+                        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Publish to reply latency of a request, from the publish instant payment core stamped on it.
+     */
+    void observed(PriorityLane lane, MessageProperties properties){
+        if (properties.getHeaders().get(HopTrace.PUBLISHED_AT) instanceof Number publishedAt){
+            meterRegistry.timer("pre_authorize.lane.latency", "lane", lane.name())
+                    .record(System.currentTimeMillis() - publishedAt.longValue(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private int waiting(PriorityLane lane){
+        lock.lock();
+        try {
+            return waiting.get(lane).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        for (int i = 0; i < workers; i++){
+            Thread thread = new Thread(this::work, "lane-worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        threads.forEach(Thread::interrupt);
+        threads.clear();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        // started before and stopped after the containers that feed the workers
+        return Integer.MAX_VALUE - 1;
+    }
+
+    record LaneTask(PriorityLane lane, Callable<Void> work, long enqueuedAt, CompletableFuture<Void> done) { }
+}
+
+/**
+ * Bounded, time windowed map used to recognise redeliveries. An entry is remembered for window-ms;
+ * once max-entries are held the oldest go first, so a redelivery storm cannot grow it without bound.
+ * Reads and inserts do not lock, eviction polls the insertion queue from its head.
+ */
+class DedupeWindow<K, V> {
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Stamped<K, V>> order = new ConcurrentLinkedQueue<>();
+    private final long windowNanos;
+    private final int maxEntries;
+    private final LongSupplier clock;
+
+    DedupeWindow(long windowMillis, int maxEntries){
+        this(windowMillis, maxEntries, System::nanoTime);
+    }
+
+    DedupeWindow(long windowMillis, int maxEntries, LongSupplier clock){
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    /**
+     * Remembers the value unless the key is still within its window, in which case the value it was
+     * first seen with is returned and nothing changes.
+     */
+    V putIfAbsent(K key, V value){
+        long now = clock.getAsLong();
+        evict(now);
+        Entry<V> fresh = new Entry<>(value, now + windowNanos);
+        while (true){
+            Entry<V> existing = entries.putIfAbsent(key, fresh);
+            if (existing == null){
+                order.add(new Stamped<>(key, fresh));
+                return null;
+            }
+            if (existing.expiresAt() - now > 0){
+                return existing.value();
+            }
+            entries.remove(key, existing);
+        }
+    }
+
+    V get(K key){
+        Entry<V> entry = entries.get(key);
+        return entry == null || entry.expiresAt() - clock.getAsLong() <= 0 ? null : entry.value();
+    }
+
+    void remove(K key){
+        entries.remove(key);
+    }
+
+    int size(){
+        return entries.size();
+    }
+
+    private void evict(long now){
+        Stamped<K, V> head;
+        while ((head = order.peek()) != null
+                && (head.entry().expiresAt() - now <= 0 || entries.size() >= maxEntries)){
+            Stamped<K, V> oldest = order.poll();
+            if (oldest != null){
+                entries.remove(oldest.key(), oldest.entry());
+            }
+        }
+    }
+
+    private record Entry<V>(V value, long expiresAt) { }
+
+    private record Stamped<K, V>(K key, Entry<V> entry) { }
+}
+
+/**
+ * Decisions already made, by request id. A request redelivered after its reply was published but
+ * before the ack reached the broker gets the same decision and the same response id again, instead
+ * of a fresh random one the payment side would have to choose between.
+ */
+@Component
+class PreAuthorizeDecisionCache {
+    private final DedupeWindow<UUID, PreAuthorizeResponse> decisions;
+    private final Counter replayed;
+
+    PreAuthorizeDecisionCache(
+            MeterRegistry meterRegistry,
+            @Value("${app.props.dedupe.window-ms:600000}") long windowMillis,
+            @Value("${app.props.dedupe.max-entries:200000}") int maxEntries){
+
+        this.decisions = new DedupeWindow<>(windowMillis, maxEntries);
+        this.replayed = meterRegistry.counter("pre_authorize.dedupe.replayed");
+        Gauge.builder("pre_authorize.dedupe.entries", decisions, DedupeWindow::size).register(meterRegistry);
+    }
+
+    public PreAuthorizeResponse decide(UUID requestId, Supplier<PreAuthorizeResponse> decision){
+        if (requestId == null){
+            return decision.get();
+        }
+        PreAuthorizeResponse cached = decisions.get(requestId);
+        if (cached == null){
+            PreAuthorizeResponse fresh = decision.get();
+            cached = decisions.putIfAbsent(requestId, fresh);
+            if (cached == null){
+                return fresh;
+            }
+        }
+        replayed.increment();
+        return cached;
+    }
+}
 
 @Component
 @RequiredArgsConstructor
@@ -138,7 +886,12 @@ class IncomeMessageHandler{
     private String exchange_name;
 
     private final RabbitTemplate rabbitTemplate;
-    public void processPreAuthorize(PreAuthorizeMessageRequest request){
+    private final TrafficJournal trafficJournal;
+    private final PreAuthorizeDecisionCache decisionCache;
+    public void processPreAuthorize(PreAuthorizeMessageRequest request, MessageProperties inbound){
+        long receivedAt = System.currentTimeMillis();
+        long start = System.nanoTime();
+        trafficJournal.appendJson(JournalRecordType.PRE_AUTH_REQUEST, request);
         log.info(
                 "Start process request message from payer "
                 + request.paymentDto().payerName()
@@ -150,16 +903,16 @@ class IncomeMessageHandler{
                 + request.paymentDto().paymentNumber()
         );
 
-        PreAuthorizeResponse response = PreAuthorizeResponse
-                .builder()
-                .responseId(request.requestId())
-                .timestamp(Instant.now())
-                .paymentDto(request.paymentDto())
-                .paymentApprove(handlePreAuthorizeApprove())
-                .build();
+        PreAuthorizeResponse response = decide(request);
+        trafficJournal.appendJson(JournalRecordType.PRE_AUTH_RESPONSE, response);
 
         try {
-            rabbitTemplate.convertAndSend(this.exchange_name, "payment.stub.pre.auth.pre", response);
+            rabbitTemplate.convertAndSend(this.exchange_name, replyRoutingKey(request), response, message -> {
+                HopTrace
+                        .stamp(inbound.getHeaders(), receivedAt, System.nanoTime() - start)
+                        .forEach(message.getMessageProperties()::setHeader);
+                return message;
+            });
         } catch (Exception ex){
             log.error("A problem was raised on trying to sending message to RabbitMQ" + ex.getMessage());
         }
@@ -167,12 +920,160 @@ class IncomeMessageHandler{
 
     }
 
+    public PreAuthorizeResponse decide(PreAuthorizeMessageRequest request){
+        return decisionCache.decide(request.requestId(), () -> PreAuthorizeResponse
+                .builder()
+                .responseId(request.requestId())
+                .timestamp(Instant.now())
+                .paymentDto(request.paymentDto())
+                .paymentApprove(handlePreAuthorizeApprove())
+                .build());
+    }
+
+    public String replyRoutingKey(PreAuthorizeMessageRequest request){
+        return request.replyRoutingKey() != null
+                ? request.replyRoutingKey()
+                : "payment.stub.pre.auth.pre";
+    }
+
     private Boolean handlePreAuthorizeApprove(){
         int randomInt = new Random().nextInt(0,5);
         return randomInt > 3;
     }
 }
 
+/**
+ * Non-blocking alternative to the listener container, enabled with the reactive profile.
+ * consume, decode, decide and publish run with bounded concurrency on a few threads. A request is
+ * acked only once the broker confirms its reply, so the consumer prefetch acts as credit: the broker
+ * hands out new requests only as fast as replies are confirmed downstream.
+ */
+@Component
+@Profile("reactive")
+@RequiredArgsConstructor
+@Slf4j
+class ReactivePreAuthorizePipeline implements SmartLifecycle {
+    private static final AMQP.BasicProperties JSON_PROPERTIES = new AMQP.BasicProperties
+            .Builder()
+            .contentType("application/json")
+            .deliveryMode(2)
+            .build();
+
+    @Value("${app.props.queue-name}")
+    private String queue_name;
+
+    @Value("${app.props.exchange-name}")
+    private String exchange_name;
+
+    @Value("${app.props.reactive.prefetch:250}")
+    private int prefetch;
+
+    @Value("${app.props.reactive.concurrency:64}")
+    private int concurrency;
+
+    private final RabbitProperties rabbitProperties;
+    private final IncomeMessageHandler incomeMessageHandler;
+    private final RetryTopology retryTopology;
+    private final ObjectMapper objectMapper;
+    private final TrafficJournal trafficJournal;
+    private final WeightedLaneScheduler laneScheduler;
+
+    private Receiver receiver;
+    private Sender sender;
+    private volatile Disposable subscription;
+
+    @Override
+    public void start() {
+        com.rabbitmq.client.ConnectionFactory connectionFactory = new com.rabbitmq.client.ConnectionFactory();
+        connectionFactory.setHost(rabbitProperties.determineHost());
+        connectionFactory.setPort(rabbitProperties.determinePort());
+        connectionFactory.setUsername(rabbitProperties.determineUsername());
+        connectionFactory.setPassword(rabbitProperties.determinePassword());
+        if (rabbitProperties.determineVirtualHost() != null){
+            connectionFactory.setVirtualHost(rabbitProperties.determineVirtualHost());
+        }
+        connectionFactory.useNio();
+
+        receiver = RabbitFlux.createReceiver(new ReceiverOptions().connectionFactory(connectionFactory));
+        sender = RabbitFlux.createSender(new SenderOptions().connectionFactory(connectionFactory));
+
+        // every lane gets its weight's share of the prefetch, so unconfirmed requests are credited per lane
+        int totalWeight = Arrays.stream(PriorityLane.values()).mapToInt(laneScheduler::weight).sum();
+        Flux<CorrelableOutboundMessage<AcknowledgableDelivery>> replies = Flux
+                .fromArray(PriorityLane.values())
+                .flatMap(lane -> receiver.consumeManualAck(
+                        lane.queue(queue_name),
+                        new ConsumeOptions().qos(Math.max(1, prefetch * laneScheduler.weight(lane) / totalWeight))))
+                .flatMap(delivery -> Mono
+                        .fromCallable(() -> reply(delivery))
+                        .subscribeOn(Schedulers.parallel()), concurrency);
+
+        subscription = sender
+                .sendWithTypedPublishConfirms(replies)
+                .doOnNext(this::settle)
+                .doOnError(ex -> log.error("Reactive pipeline failed, resubscribing " + ex.getMessage()))
+                .retryWhen(Retry
+                        .backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofSeconds(30)))
+                .subscribe();
+    }
+
+    private CorrelableOutboundMessage<AcknowledgableDelivery> reply(AcknowledgableDelivery delivery) {
+        long receivedAt = System.currentTimeMillis();
+        long start = System.nanoTime();
+        trafficJournal.append(JournalRecordType.PRE_AUTH_REQUEST, delivery.getBody());
+        try {
+            PreAuthorizeMessageRequest request = objectMapper
+                    .readValue(delivery.getBody(), PreAuthorizeMessageRequest.class);
+            PreAuthorizeResponse response = incomeMessageHandler.decide(request);
+            byte[] body = objectMapper.writeValueAsBytes(response);
+            trafficJournal.append(JournalRecordType.PRE_AUTH_RESPONSE, body);
+            AMQP.BasicProperties properties = JSON_PROPERTIES
+                    .builder()
+                    .headers(HopTrace.stamp(delivery.getProperties().getHeaders(), receivedAt, System.nanoTime() - start))
+                    .build();
+            return new CorrelableOutboundMessage<>(
+                    exchange_name,
+                    incomeMessageHandler.replyRoutingKey(request),
+                    properties,
+                    body,
+                    delivery);
+        } catch (IOException ex){
+            log.error("Parking unreadable pre authorize request " + ex.getMessage());
+            return new CorrelableOutboundMessage<>(
+                    "",
+                    retryTopology.parkingLot(),
+                    delivery.getProperties(),
+                    delivery.getBody(),
+                    delivery);
+        }
+    }
+
+    private void settle(OutboundMessageResult<CorrelableOutboundMessage<AcknowledgableDelivery>> result) {
+        AcknowledgableDelivery delivery = result.getOutboundMessage().getCorrelationMetadata();
+        if (result.isAck()){
+            delivery.ack();
+        } else {
+            delivery.nack(true);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (subscription != null){
+            subscription.dispose();
+        }
+        receiver.close();
+        sender.close();
+        subscription = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return subscription != null && !subscription.isDisposed();
+    }
+}
+
 @Component
 @RequiredArgsConstructor
 class JsonConverterForMessageQueue implements MessageConverter {
@@ -0,0 +1,14 @@
+package com.example.preauthorize;
+
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class ContainerPipelineBenchmarkTest extends PipelineBenchmark {
+
+    @Override
+    String pipelineName() {
+        return "listener container";
+    }
+}
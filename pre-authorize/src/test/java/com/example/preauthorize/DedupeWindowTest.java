@@ -0,0 +1,63 @@
+package com.example.preauthorize;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DedupeWindowTest {
+
+    final AtomicLong now = new AtomicLong();
+    final DedupeWindow<String, String> window = new DedupeWindow<>(1000, 3, now::get);
+
+    @Test
+    void shouldKeepTheFirstValueWithinTheWindow() {
+        assertThat(window.putIfAbsent("a", "approved")).isNull();
+        assertThat(window.putIfAbsent("a", "declined")).isEqualTo("approved");
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        assertThat(window.get("a")).isNull();
+        assertThat(window.putIfAbsent("a", "declined")).isNull();
+        assertThat(window.get("a")).isEqualTo("declined");
+    }
+
+    @Test
+    void shouldForgetTheOldestOnceFull() {
+        for (String key : new String[]{"a", "b", "c", "d"}){
+            window.putIfAbsent(key, key);
+        }
+
+        assertThat(window.size()).isEqualTo(3);
+        assertThat(window.get("a")).isNull();
+        assertThat(window.get("d")).isEqualTo("d");
+    }
+
+    @Test
+    void shouldReplayTheFirstDecisionForARedeliveredRequest() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PreAuthorizeDecisionCache cache = new PreAuthorizeDecisionCache(meterRegistry, 60_000, 100);
+        AtomicInteger decided = new AtomicInteger();
+        UUID requestId = UUID.randomUUID();
+
+        PreAuthorizeResponse first = cache.decide(requestId, () -> response(requestId, decided.incrementAndGet() == 1));
+        PreAuthorizeResponse second = cache.decide(requestId, () -> response(requestId, decided.incrementAndGet() == 1));
+
+        assertThat(second).isSameAs(first);
+        assertThat(decided.get()).isEqualTo(1);
+        assertThat(meterRegistry.counter("pre_authorize.dedupe.replayed").count()).isEqualTo(1);
+    }
+
+    private static PreAuthorizeResponse response(UUID requestId, boolean approved){
+        return PreAuthorizeResponse
+                .builder()
+                .responseId(requestId)
+                .paymentApprove(approved)
+                .build();
+    }
+}
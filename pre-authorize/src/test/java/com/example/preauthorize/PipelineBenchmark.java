@@ -0,0 +1,77 @@
+package com.example.preauthorize;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Publishes a burst of requests straight onto the request queue and times how long the
+ * pipeline under test takes to put every reply on the response queue. Needs a local broker.
+ */
+public abstract class PipelineBenchmark {
+
+    static final int MESSAGES = 20_000;
+    static final String REQUEST_QUEUE = "pre_authorize";
+    static final String RESPONSE_QUEUE = "pre_authorize_resp";
+
+    @Autowired
+    RabbitTemplate rabbitTemplate;
+
+    @Autowired
+    AmqpAdmin amqpAdmin;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    abstract String pipelineName();
+
+    @Test
+    void shouldReplyToEveryRequest() throws Exception {
+        amqpAdmin.purgeQueue(RESPONSE_QUEUE, false);
+
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType("application/json");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++){
+            PreAuthorizeMessageRequest request = PreAuthorizeMessageRequest
+                    .builder()
+                    .requestId(UUID.randomUUID())
+                    .paymentDto(PaymentDto
+                            .builder()
+                            .id(UUID.randomUUID())
+                            .paymentNumber(100_000_000 + i)
+                            .amount(new BigDecimal("4.5"))
+                            .payerName("John Green")
+                            .state("PRE_AUTH")
+                            .build())
+                    .timestamp(Instant.now())
+                    .build();
+            rabbitTemplate.send("", REQUEST_QUEUE, new Message(objectMapper.writeValueAsBytes(request), properties));
+        }
+
+        long deadline = System.currentTimeMillis() + 120_000;
+        long replies = 0;
+        while (replies < MESSAGES && System.currentTimeMillis() < deadline){
+            QueueInformation info = amqpAdmin.getQueueInfo(RESPONSE_QUEUE);
+            replies = info == null ? 0 : info.getMessageCount();
+            Thread.sleep(20);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%s pipeline: %d replies in %.2fs, %.0f msg/s%n",
+                pipelineName(), replies, seconds, replies / seconds);
+        assertThat(replies).isEqualTo(MESSAGES);
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.preauthorize;
+
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+@ActiveProfiles("reactive")
+@SpringBootTest
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class ReactivePipelineBenchmarkTest extends PipelineBenchmark {
+
+    @Override
+    String pipelineName() {
+        return "reactive";
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.preauthorize;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class WeightedLaneSchedulerTest {
+
+    static final Callable<Void> NOTHING = () -> null;
+
+    final WeightedLaneScheduler scheduler = new WeightedLaneScheduler(new SimpleMeterRegistry(), 1, 8, 3, 1);
+
+    @Test
+    void shouldShareWorkersByWeightWhileEveryLaneIsBusy() throws InterruptedException {
+        for (int i = 0; i < 24; i++){
+            for (PriorityLane lane : PriorityLane.values()){
+                scheduler.enqueue(lane, NOTHING);
+            }
+        }
+
+        Map<PriorityLane, Integer> picked = new EnumMap<>(PriorityLane.class);
+        for (int i = 0; i < 24; i++){
+            picked.merge(scheduler.next().lane(), 1, Integer::sum);
+        }
+
+        assertThat(picked).containsEntry(PriorityLane.HIGH, 16)
+                .containsEntry(PriorityLane.STANDARD, 6)
+                .containsEntry(PriorityLane.BULK, 2);
+    }
+
+    @Test
+    void shouldGiveAnIdleLaneShareToTheOthers() throws InterruptedException {
+        for (int i = 0; i < 4; i++){
+            scheduler.enqueue(PriorityLane.BULK, NOTHING);
+        }
+
+        for (int i = 0; i < 4; i++){
+            assertThat(scheduler.next().lane()).isEqualTo(PriorityLane.BULK);
+        }
+    }
+
+    @Test
+    void shouldRethrowWhatTheWorkThrew() {
+        scheduler.start();
+        try {
+            assertThatThrownBy(() -> scheduler.run(PriorityLane.HIGH, () -> {
+                throw new IllegalStateException("declined");
+            })).isInstanceOf(IllegalStateException.class);
+        } finally {
+            scheduler.stop();
+        }
+    }
+}
@@ -1,11 +1,25 @@
 package com.example.payment;
 
+import com.example.startup.TrainingRunExit;
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.Channel;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.persistence.*;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.*;
 import lombok.*;
@@ -15,35 +29,77 @@ import org.hibernate.annotations.GenericGenerator;
 import org.hibernate.annotations.JdbcTypeCode;
 import org.hibernate.type.SqlTypes;
 import org.mapstruct.Mapper;
+import org.mapstruct.Mapping;
 import org.mapstruct.MappingConstants;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
 import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.core.*;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.AbstractMessageListenerContainer;
 import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
 import org.springframework.amqp.rabbit.listener.adapter.MessageListenerAdapter;
+import org.springframework.amqp.rabbit.support.ListenerExecutionFailedException;
 import org.springframework.amqp.support.converter.MessageConversionException;
 import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.jdbc.DataSourceBuilder;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.redis.cache.RedisCacheConfiguration;
 import org.springframework.data.redis.cache.RedisCacheManager;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.data.repository.query.Param;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.statemachine.StateContext;
 import org.springframework.statemachine.StateMachine;
 import org.springframework.statemachine.action.Action;
@@ -60,24 +116,94 @@ import org.springframework.statemachine.state.State;
 import org.springframework.statemachine.support.DefaultStateMachineContext;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.ErrorHandler;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
+import javax.sql.DataSource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
 import java.net.URI;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.Normalizer;
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 @SpringBootApplication(exclude = SecurityAutoConfiguration.class)
+@EnableScheduling
+@Import(TrainingRunExit.class)
 public class PaymentApplication {
 
     public static void main(String[] args) {
@@ -90,6 +216,9 @@ public class PaymentApplication {
 @AllArgsConstructor
 @Builder
 @Entity
+@Table(indexes = {
+        @Index(name = "idx_payment_state_id", columnList = "payment_state, id"),
+        @Index(name = "idx_payment_timestamp_id", columnList = "timestamp, id")})
 class Payment {
     @Id
     @GeneratedValue
@@ -108,11 +237,98 @@ class Payment {
     @Enumerated(EnumType.STRING)
     @Column(name = "payment_state")
     private States paymentState;
+    @Version
+    @Column(nullable = false)
+    private Long version;
 }
 
 interface PaymentRepository extends JpaRepository<Payment, UUID>{
     Optional<Payment> findByPaymentNumber(Integer paymentNumber);
+    List<Payment> findAllByPaymentNumberIn(Collection<Integer> paymentNumbers);
     List<Payment> findAllByPayerName(String name, Pageable pageable);
+    @Query("select p.id, p.paymentNumber, p.payerName from Payment p where p.id > :after and p.id <= :upTo order by p.id")
+    List<Object[]> findSearchEntriesAfter(
+            @Param("after") UUID after,
+            @Param("upTo") UUID upTo,
+            Pageable pageable);
+    @Query("select p from Payment p where p.paymentState in :states and p.id > :after and p.id <= :upTo order by p.id")
+    List<Payment> findInStatesAfter(
+            @Param("states") Collection<States> states,
+            @Param("after") UUID after,
+            @Param("upTo") UUID upTo,
+            Pageable pageable);
+    List<Payment> findAllByOrderByTimestampDescIdDesc(Pageable pageable);
+    @Query("select p from Payment p where p.timestamp < :timestamp or (p.timestamp = :timestamp and p.id < :id) order by p.timestamp desc, p.id desc")
+    List<Payment> findCreatedBefore(
+            @Param("timestamp") Instant timestamp,
+            @Param("id") UUID id,
+            Pageable pageable);
+    @Transactional
+    @Modifying
+    @Query("update Payment p set p.paymentState = :to, p.version = p.version + 1 where p.paymentNumber in :paymentNumbers and p.paymentState = :from")
+    int updateStates(
+            @Param("paymentNumbers") Collection<Integer> paymentNumbers,
+            @Param("from") States from,
+            @Param("to") States to);
+}
+
+/**
+ * One immutable row per state transition, appended by PaymentTransitionLog. The sequence orders the
+ * transitions of a payment, so its history is a range scan of the (payment_id, sequence_number) index.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Entity
+@Table(
+        name = "payment_transition",
+        indexes = @Index(name = "idx_payment_transition_payment_sequence", columnList = "payment_id, sequence_number"))
+class PaymentTransition {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "sequence_number")
+    private Long sequenceNumber;
+    @JdbcTypeCode(SqlTypes.VARCHAR)
+    @Column(name = "payment_id", nullable = false, updatable = false, length = 36)
+    private UUID paymentId;
+    @Column(name = "payment_number", updatable = false)
+    private Integer paymentNumber;
+    @Enumerated(EnumType.STRING)
+    @Column(name = "from_state", nullable = false, updatable = false)
+    private States fromState;
+    @Enumerated(EnumType.STRING)
+    @Column(name = "to_state", nullable = false, updatable = false)
+    private States toState;
+    @Enumerated(EnumType.STRING)
+    @Column(updatable = false)
+    private Events event;
+    @Column(name = "occurred_at", nullable = false, updatable = false)
+    private Instant occurredAt;
+}
+
+interface PaymentTransitionRepository extends JpaRepository<PaymentTransition, Long>{
+    List<PaymentTransition> findAllByPaymentIdOrderBySequenceNumber(UUID paymentId);
+}
+
+@Builder
+record PaymentTransitionDto(
+        @JsonProperty("sequence") Long sequence,
+        @JsonProperty("from") States from,
+        @JsonProperty("to") States to,
+        @JsonProperty("event") Events event,
+        Instant timestamp
+) {
+    static PaymentTransitionDto of(PaymentTransition transition){
+        return PaymentTransitionDto
+                .builder()
+                .sequence(transition.getSequenceNumber())
+                .from(transition.getFromState())
+                .to(transition.getToState())
+                .event(transition.getEvent())
+                .timestamp(transition.getOccurredAt())
+                .build();
+    }
 }
 
 @Builder
@@ -134,7 +350,10 @@ record PaymentDto(
         @Pattern(regexp = "^[a-zA-ZÀ-ÖØ-öø-ÿ\s]+$", message = "Payer name must contian only letters")
         @JsonProperty("payer_name")
         String payerName,
-        @Null States state
+        @Null States state,
+        @Null(message = "Version must be null")
+        @JsonProperty("version")
+        Long version
 
 ) implements Serializable {
     static long serialVersionUid = 1L;
@@ -142,7 +361,9 @@ record PaymentDto(
 
 @Mapper(componentModel = MappingConstants.ComponentModel.SPRING)
 interface PaymentMapper {
+    @Mapping(source = "state", target = "paymentState")
     Payment dtoToEntity(PaymentDto paymentDto);
+    @Mapping(source = "paymentState", target = "state")
     PaymentDto entityToDto(Payment payment);
 }
 
@@ -152,29 +373,50 @@ interface PaymentService {
     Set<PaymentDto> getAllPayments(Pageable pageable);
     Set<PaymentDto> getAllPaymentByPayer(Pageable pageable, String payerName);
     UUID createPayment(PaymentDto paymentDto);
+    UUID createPaymentAsync(PaymentDto paymentDto);
+    List<PayerSearchHit> searchByPayer(String payerPrefix, Pageable pageable);
+    AsyncCreateStatus getAsyncCreateStatus(UUID id);
+    List<PaymentTransitionDto> getPaymentHistory(UUID id);
+    List<PaymentDto> getPaymentsByIds(Collection<UUID> ids);
     void initPaymentProcessor(Payment payment);
     void processPreAuthorizeResponse(PreAuthorizeResponse response);
+    void processPreAuthorizeResponses(List<PreAuthorizeResponse> responses);
+    void processAuthorizeBatchResponse(AuthorizeBatchResponse response);
 }
 
 @Service
 @RequiredArgsConstructor
+@Slf4j
 class PaymentServiceImpl implements PaymentService {
 
     private final PaymentRepository paymentRepository;
     private final PaymentMapper paymentMapper;
     private final StateMachineFactory<States, Events> stateMachineFactory;
+    private final PayerCacheGeneration payerCacheGeneration;
+    private final AdmissionController admissionController;
+    private final PaymentWriteBehindBuffer writeBehindBuffer;
+    private final PayerSearchIndex payerSearchIndex;
+    private final LatencyTracer latencyTracer;
+    private final PaymentExistenceFilter existenceFilter;
+    private final AuthorizationBatcher authorizationBatcher;
+    private final TransactionTemplate transactionTemplate;
+    private final PaymentTransitionRepository transitionRepository;
+    private final PreAuthorizeResponseDedupe responseDedupe;
 
     @Override
+    @Transactional(readOnly = true)
     public PaymentDto getPaymentById(UUID id) {
         return paymentMapper.entityToDto(handleGetById(id));
     }
 
     @Override
+    @Transactional(readOnly = true)
     public PaymentDto getPaymentByPaymentNumber(Integer paymentNumber) {
         return paymentMapper.entityToDto(handleGetById(paymentNumber));
     }
 
     @Override
+    @Transactional(readOnly = true)
     public Set<PaymentDto> getAllPayments(Pageable pageable) {
         return paymentRepository
                 .findAll(pageable)
@@ -186,7 +428,8 @@ class PaymentServiceImpl implements PaymentService {
 
 
     @Override
-    @Cacheable(key = "#payerName + '_' + #pageable", cacheNames = "payments")
+    @Transactional(readOnly = true)
+    @Cacheable(key = "#payerName + '_' + @payerCacheGeneration.current(#payerName) + '_' + #pageable", cacheNames = "payments")
     public Set<PaymentDto> getAllPaymentByPayer(Pageable pageable, String payerName) {
 
         return paymentRepository
@@ -198,13 +441,99 @@ class PaymentServiceImpl implements PaymentService {
 
     @Override
     public UUID createPayment(PaymentDto paymentDto) {
-        Integer paymentNumber = AppUtils.generatePaymentNumber();
+        if (!admissionController.tryAcquire()){
+            throw new AdmissionRejectedException(admissionController.retryAfterSeconds());
+        }
+        try {
+            Integer paymentNumber = AppUtils.generatePaymentNumber();
+            Payment paymentToPersist = paymentMapper.dtoToEntity(paymentDto);
+            paymentToPersist.setPaymentNumber(paymentNumber);
+            paymentToPersist.setPaymentState(States.NEW);
+            Payment persisted = paymentRepository.save(paymentToPersist);
+            admissionController.track(persisted.getPaymentNumber());
+            latencyTracer.begin(persisted.getPaymentNumber());
+            existenceFilter.add(persisted.getId(), persisted.getPaymentNumber());
+            payerCacheGeneration.bump(persisted.getPayerName());
+            payerSearchIndex.add(persisted);
+            initPaymentProcessor(persisted);
+            return persisted.getId();
+        } catch (RuntimeException ex){
+            admissionController.release();
+            throw ex;
+        }
+    }
+
+    @Override
+    public UUID createPaymentAsync(PaymentDto paymentDto) {
+        if (!admissionController.tryAcquire()){
+            throw new AdmissionRejectedException(admissionController.retryAfterSeconds());
+        }
         Payment paymentToPersist = paymentMapper.dtoToEntity(paymentDto);
-        paymentToPersist.setPaymentNumber(paymentNumber);
+        paymentToPersist.setId(UUID.randomUUID());
+        paymentToPersist.setPaymentNumber(AppUtils.generatePaymentNumber());
         paymentToPersist.setPaymentState(States.NEW);
-        Payment persisted = paymentRepository.save(paymentToPersist);
-        initPaymentProcessor(persisted);
-        return persisted.getId();
+        paymentToPersist.setTimestamp(Instant.now());
+        paymentToPersist.setVersion(0L);
+
+        latencyTracer.begin(paymentToPersist.getPaymentNumber());
+        boolean accepted = writeBehindBuffer.enqueue(paymentToPersist, persisted -> {
+            admissionController.track(persisted.getPaymentNumber());
+            existenceFilter.add(persisted.getId(), persisted.getPaymentNumber());
+            payerCacheGeneration.bump(persisted.getPayerName());
+            payerSearchIndex.add(persisted);
+            initPaymentProcessor(persisted);
+        }, failed -> admissionController.release());
+
+        if (!accepted){
+            admissionController.release();
+            throw new AdmissionRejectedException(1);
+        }
+        return paymentToPersist.getId();
+    }
+
+    @Override
+    public List<PayerSearchHit> searchByPayer(String payerPrefix, Pageable pageable) {
+        return payerSearchIndex.search(payerPrefix, (int) pageable.getOffset(), pageable.getPageSize());
+    }
+
+    @Override
+    public AsyncCreateStatus getAsyncCreateStatus(UUID id) {
+        AsyncCreateStatus buffered = writeBehindBuffer.status(id);
+        if (buffered != null){
+            return buffered;
+        }
+        if (!paymentRepository.existsById(id)){
+            throw new ResourceNotFoundException(id.toString());
+        }
+        return AsyncCreateStatus
+                .builder()
+                .id(id)
+                .state(AsyncCreateState.COMMITTED)
+                .build();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaymentDto> getPaymentsByIds(Collection<UUID> ids) {
+        return paymentRepository
+                .findAllById(ids)
+                .stream()
+                .map(paymentMapper::entityToDto)
+                .toList();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaymentTransitionDto> getPaymentHistory(UUID id) {
+        List<PaymentTransitionDto> history = transitionRepository
+                .findAllByPaymentIdOrderBySequenceNumber(id)
+                .stream()
+                .map(PaymentTransitionDto::of)
+                .toList();
+        if (history.isEmpty() && !paymentRepository.existsById(id)){
+            throw new ResourceNotFoundException(id.toString());
+        }
+        return history;
     }
 
     @Override
@@ -214,12 +543,58 @@ class PaymentServiceImpl implements PaymentService {
             .startReactively()
             .publishOn(Schedulers.boundedElastic())
             .doFirst(() -> {
-                sm.sendEvent(getMonoMessage(Events.PRE_AUTHORIZE, payment.getPaymentNumber())).subscribe();
+                sm.sendEvent(getMonoMessage(Events.PRE_AUTHORIZE, payment)).subscribe();
             }).subscribe();
     }
 
     @Override
     public void processPreAuthorizeResponse(PreAuthorizeResponse response) {
+        if (!responseDedupe.firstSeen(response.responseId())){
+            return;
+        }
+        try {
+            applyPreAuthorizeResponse(response);
+        } catch (RuntimeException ex){
+            responseDedupe.forget(response.responseId());
+            throw ex;
+        }
+    }
+
+    @Override
+    public void processPreAuthorizeResponses(List<PreAuthorizeResponse> responses) {
+        List<PreAuthorizeResponse> fresh = responses
+                .stream()
+                .filter(response -> responseDedupe.firstSeen(response.responseId()))
+                .toList();
+        if (fresh.isEmpty()){
+            return;
+        }
+        fresh.forEach(response -> admissionController.complete(response.paymentDto().paymentNumber()));
+        Map<Boolean, List<Payment>> byOutcome;
+        try {
+            byOutcome = moveInBulk(
+                    fresh,
+                    response -> response.paymentDto().paymentNumber(),
+                    response -> Boolean.TRUE.equals(response.paymentApprove()),
+                    States.PRE_AUTH, States.AUTH, States.PRE_AUTH_ERROR);
+        } catch (RuntimeException ex){
+            // nothing was committed, the listener falls back to one response at a time,
+            // which must not see these as duplicates
+            fresh.forEach(response -> responseDedupe.forget(response.responseId()));
+            throw ex;
+        }
+        // committed, from here on nothing may throw into the listener's fallback and apply these twice
+        byOutcome.get(true).forEach(payment -> {
+            payment.setPaymentState(States.AUTH);
+            authorizationBatcher.add(AuthorizationBatcher.DEFAULT_ROUTING_KEY, paymentMapper.entityToDto(payment));
+            announce(payment, States.PRE_AUTH, Events.PRE_AUTH_APPROVED);
+        });
+        byOutcome.get(false).forEach(payment -> announce(payment, States.PRE_AUTH, Events.PRE_AUTH_DECLINED));
+        bumpPayerGenerations(byOutcome);
+    }
+
+    private void applyPreAuthorizeResponse(PreAuthorizeResponse response) {
+        admissionController.complete(response.paymentDto().paymentNumber());
         Payment entityPayment = paymentMapper.dtoToEntity(response.paymentDto());
         StateMachine<States, Events> sm = getStateMachine(entityPayment, States.PRE_AUTH);
         sm
@@ -227,18 +602,111 @@ class PaymentServiceImpl implements PaymentService {
                 .publishOn(Schedulers.boundedElastic())
                 .doFirst(() -> {
                     if (response.paymentApprove()){
-                        sm.sendEvent(getMonoMessage(Events.PRE_AUTH_APPROVED, entityPayment.getPaymentNumber())).subscribe();
+                        sm.sendEvent(getMonoMessage(Events.PRE_AUTH_APPROVED, entityPayment)).subscribe();
                     } else {
-                        sm.sendEvent(getMonoMessage(Events.PRE_AUTH_DECLINED, entityPayment.getPaymentNumber())).subscribe();
+                        sm.sendEvent(getMonoMessage(Events.PRE_AUTH_DECLINED, entityPayment)).subscribe();
                     }
                 }).subscribe();
     }
 
+    @Override
+    public void processAuthorizeBatchResponse(AuthorizeBatchResponse response) {
+        // one statement per outcome persists the whole batch, the machines below only announce it
+        Map<Boolean, List<Payment>> byOutcome = moveInBulk(
+                response.results(),
+                result -> result.paymentDto().paymentNumber(),
+                result -> Boolean.TRUE.equals(result.authorized()),
+                States.AUTH, States.AUTH_AUTHORIZED, States.AUTH_ERROR);
+
+        byOutcome.forEach((authorized, payments) -> payments.forEach(payment -> announce(
+                payment,
+                States.AUTH,
+                authorized ? Events.AUTH_APPROVED : Events.AUTH_DECLINED)));
+        bumpPayerGenerations(byOutcome);
+    }
+
+    private void bumpPayerGenerations(Map<Boolean, List<Payment>> byOutcome){
+        try {
+            byOutcome
+                    .values()
+                    .stream()
+                    .flatMap(List::stream)
+                    .map(Payment::getPayerName)
+                    .distinct()
+                    .forEach(payerCacheGeneration::bump);
+        } catch (RuntimeException ex){
+            // the moves are committed already, a failed bump only leaves payer pages stale until their TTL
+            log.warn("Payer cache generations not bumped after a bulk move " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Moves the payments of a batch of results out of from in one transaction, approved ones to
+     * approvedTo and the others to declinedTo. Only payments still in from are moved and returned,
+     * so a redelivered batch, or a result repeated within one, moves and announces nothing.
+     */
+    private <R> Map<Boolean, List<Payment>> moveInBulk(
+            List<R> results,
+            Function<R, Integer> paymentNumber,
+            Predicate<R> approved,
+            States from,
+            States approvedTo,
+            States declinedTo){
+
+        List<Integer> paymentNumbers = results.stream().map(paymentNumber).toList();
+        return transactionTemplate.execute(status -> {
+            Map<Integer, Payment> current = paymentRepository
+                    .findAllByPaymentNumberIn(paymentNumbers)
+                    .stream()
+                    .collect(Collectors.toMap(Payment::getPaymentNumber, payment -> payment, (first, second) -> first));
+            Map<Boolean, List<Payment>> outcome = Map.of(true, new ArrayList<>(), false, new ArrayList<>());
+            for (R result : results){
+                // removing keeps a result that was delivered twice in one batch from applying twice
+                Payment payment = current.remove(paymentNumber.apply(result));
+                if (payment == null || payment.getPaymentState() != from){
+                    continue;
+                }
+                outcome.get(approved.test(result)).add(payment);
+            }
+            updateStates(paymentNumbers(outcome.get(true)), from, approvedTo);
+            updateStates(paymentNumbers(outcome.get(false)), from, declinedTo);
+            return outcome;
+        });
+    }
+
+    private void announce(Payment payment, States from, Events event){
+        StateMachine<States, Events> sm = getStateMachine(payment, from);
+        Message<Events> msg = MessageBuilder
+                .withPayload(event)
+                .setHeader(StateMachineConfig.PAYMENT_HEADER, payment.getPaymentNumber())
+                .setHeader(StateMachineConfig.PAYER_HEADER, payment.getPayerName())
+                .setHeader(StateMachineConfig.AMOUNT_HEADER, payment.getAmount())
+                .setHeader(StateMachineConfig.PERSISTED_HEADER, true)
+                .build();
+        sm
+                .startReactively()
+                .publishOn(Schedulers.boundedElastic())
+                .doFirst(() -> sm.sendEvent(Mono.just(msg)).subscribe())
+                .subscribe();
+    }
+
+    private static List<Integer> paymentNumbers(List<Payment> payments){
+        return payments.stream().map(Payment::getPaymentNumber).toList();
+    }
+
+    private void updateStates(List<Integer> paymentNumbers, States from, States to){
+        if (paymentNumbers.isEmpty()){
+            return;
+        }
+        paymentRepository.updateStates(paymentNumbers, from, to);
+    }
 
-    private Mono<Message<Events>> getMonoMessage(Events event, Integer paymentNumber){
+    private Mono<Message<Events>> getMonoMessage(Events event, Payment payment){
         Message<Events> msg = MessageBuilder
                 .withPayload(event)
-                .setHeader(StateMachineConfig.PAYMENT_HEADER, paymentNumber)
+                .setHeader(StateMachineConfig.PAYMENT_HEADER, payment.getPaymentNumber())
+                .setHeader(StateMachineConfig.PAYER_HEADER, payment.getPayerName())
+                .setHeader(StateMachineConfig.AMOUNT_HEADER, payment.getAmount())
                 .build();
         return Mono.just(msg);
 
@@ -276,170 +744,3278 @@ class PaymentServiceImpl implements PaymentService {
 
 class ResourceNotFoundException extends RuntimeException {
     public ResourceNotFoundException(String id) {
-        super(String.format("Resource with id %s was not found", id));
+        // a lookup miss is an answer, not a failure: skip the stack trace walk
+        super(String.format("Resource with id %s was not found", id), null, false, false);
     }
 }
 
-class AppUtils {
-    public static Integer generatePaymentNumber(){
-        LocalDateTime now = LocalDateTime.now();
-        String formattedDate = now.format(DateTimeFormatter.ofPattern("MMddHHmm"));
-        int randomNumber = new Random().nextInt(0, 9);
-        String generatedStr = formattedDate + randomNumber;
-        return Integer.parseInt(generatedStr);
+/**
+ * Per payer generation counter embedded in the payer page cache keys. A single INCR
+ * invalidates every cached page of a payer, the old entries simply age out by TTL.
+ */
+@Component
+@RequiredArgsConstructor
+class PayerCacheGeneration {
+    private static final String KEY_PREFIX = "payer_gen:";
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public long current(String payerName){
+        String generation = stringRedisTemplate.opsForValue().get(KEY_PREFIX + payerName);
+        return generation == null ? 0L : Long.parseLong(generation);
     }
 
+    public void bump(String payerName){
+        stringRedisTemplate.opsForValue().increment(KEY_PREFIX + payerName);
+    }
 }
 
-@RestController
-@RequestMapping("/api/v1/payment")
-@RequiredArgsConstructor
-class PaymentController {
-    private final PaymentService paymentService;
-    private final RedisTemplate<String, PaymentDto> redisTemplate;
-    @GetMapping("/find/id/{id}")
-    public ResponseEntity<PaymentDto> getById(@PathVariable UUID id){
-        PaymentDto cached = getFromRedis(id.toString());
-        if (cached != null){
-            return new ResponseEntity<>(cached, HttpStatus.OK);
-        }
-        PaymentDto fromDb = paymentService
-                .getPaymentById(id);
-        savePaymentOnRedis(id.toString(), fromDb);
-        return new ResponseEntity<>(fromDb, HttpStatus.OK);
+enum AsyncCreateState {
+    PENDING, COMMITTED, FAILED
+}
+
+@Builder
+record AsyncCreateStatus(
+        @JsonProperty("id") UUID id,
+        @JsonProperty("state") AsyncCreateState state,
+        @JsonProperty("reason") String reason
+) { }
+
+record PendingCreate(
+        Payment payment,
+        Consumer<Payment> onCommit,
+        Consumer<Payment> onFailure
+) { }
+
+/**
+ * One flusher thread behind a bounded queue. It takes the first item, lingers up to linger-ms for
+ * batch-size items and hands the batch to the sink. When the sink throws, whatever it left in the
+ * batch is retried with a growing backoff, so an outage stalls the flusher instead of killing it;
+ * a sink removes the items it is done with before throwing. Offers and stop are serialized, so once
+ * stop returns every accepted item was either flushed or, after drain-timeout, handed to abandon.
+ */
+@Slf4j
+class BatchDrainer<T> {
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5_000;
+
+    private final String name;
+    private final BlockingQueue<T> queue;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final long drainTimeoutMillis;
+    private final Consumer<List<T>> sink;
+    private final Consumer<List<T>> abandon;
+    private final ReadWriteLock accepting = new ReentrantReadWriteLock();
+    private volatile boolean running;
+    private volatile boolean failing;
+    private volatile long stopDeadline;
+    private volatile Thread flusher;
+
+    BatchDrainer(String name, int capacity, int batchSize, long lingerMillis, long drainTimeoutMillis,
+                 Consumer<List<T>> sink, Consumer<List<T>> abandon){
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.sink = sink;
+        this.abandon = abandon;
     }
-    @GetMapping("/find")
-    public ResponseEntity<PaymentDto> getByPaymentNumber(
-            @RequestParam("number") Integer paymentNumber){
-        PaymentDto cached = getFromRedis(paymentNumber.toString());
-        if (cached != null){
-            return new ResponseEntity<>(cached, HttpStatus.OK);
+
+    /**
+     * Errors a retry can get past: lost connections, lock timeouts, a pool that is exhausted for now.
+     */
+    static boolean isTransient(DataAccessException ex){
+        return ex instanceof TransientDataAccessException
+                || ex instanceof RecoverableDataAccessException
+                || ex instanceof DataAccessResourceFailureException;
+    }
+
+    boolean offer(T item){
+        Lock lock = accepting.readLock();
+        lock.lock();
+        try {
+            return running && queue.offer(item);
+        } finally {
+            lock.unlock();
         }
-        PaymentDto fromDb = paymentService
-                .getPaymentByPaymentNumber(paymentNumber);
-        savePaymentOnRedis(paymentNumber.toString(), fromDb);
-        return new ResponseEntity<>(fromDb, HttpStatus.OK);
     }
-    @GetMapping
-    public ResponseEntity<Set<PaymentDto>> getAllPayments(Pageable pageable){
-        return new ResponseEntity<>(
-                paymentService
-                        .getAllPayments(
-                                PageRequest.of(pageable.getPageNumber(),
-                                pageable.getPageSize())), HttpStatus.OK);
+
+    int size(){
+        return queue.size();
     }
-    @GetMapping("/find/name/{payer_name}")
-    public ResponseEntity<Set<PaymentDto>> getAllByPayerName(
-            @PathVariable("payer_name") String payerName,
-            Pageable pageable){
-        return new ResponseEntity<>(
-                paymentService
-                        .getAllPaymentByPayer(
-                                PageRequest.of(pageable.getPageNumber(),
-                                pageable.getPageSize()), payerName),
-                                    HttpStatus.OK);
+
+    boolean isRunning(){
+        return running;
     }
-    @PostMapping
-    public ResponseEntity<Void> createPayment(
-            @RequestBody @Valid PaymentDto paymentDto,
-            UriComponentsBuilder ucb){
 
-        UUID persistedId = paymentService.createPayment(paymentDto);
+    boolean isHealthy(){
+        Thread thread = flusher;
+        return thread != null && thread.isAlive() && !failing;
+    }
 
-        URI resourcePath = ucb
-                .path("/api/v1/payment/find/id/{id}")
-                .buildAndExpand(persistedId)
-                .toUri();
+    void start(){
+        running = true;
+        flusher = new Thread(this::drainLoop, name);
+        flusher.start();
+    }
 
-        return ResponseEntity.created(resourcePath).build();
+    void stop(){
+        Lock lock = accepting.writeLock();
+        lock.lock();
+        try {
+            stopDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+            running = false;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
     }
 
-    private void savePaymentOnRedis(String key, PaymentDto dto){
-        redisTemplate.opsForValue().set(key, dto, Duration.ofMinutes(3));
+    private void drainLoop(){
+        List<T> batch = new ArrayList<>(batchSize);
+        long backoff = 0;
+        while (running || !queue.isEmpty() || !batch.isEmpty()){
+            try {
+                if (batch.isEmpty() && !take(batch)){
+                    continue;
+                }
+                sink.accept(batch);
+                batch.clear();
+                backoff = 0;
+                failing = false;
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+                queue.drainTo(batch);
+                flushOnce(batch);
+                return;
+            } catch (RuntimeException ex){
+                failing = true;
+                if (!running && System.nanoTime() - stopDeadline > 0){
+                    log.error(name + " stopped with " + batch.size() + " items it could not flush " + ex.getMessage());
+                    queue.drainTo(batch);
+                    abandon(batch);
+                    return;
+                }
+                backoff = Math.min(Math.max(backoff * 2, MIN_BACKOFF_MILLIS), MAX_BACKOFF_MILLIS);
+                log.error(name + " failed to flush " + batch.size() + " items, retrying in " + backoff + "ms " + ex.getMessage());
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(backoff));
+            }
+        }
     }
-    private PaymentDto getFromRedis(String key){
-        return redisTemplate.opsForValue().get(key);
+
+    private boolean take(List<T> batch) throws InterruptedException {
+        T first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null){
+            return false;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        while (batch.size() < batchSize){
+            queue.drainTo(batch, batchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || remaining <= 0){
+                break;
+            }
+            T next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null){
+                break;
+            }
+            batch.add(next);
+        }
+        return true;
+    }
+
+    private void flushOnce(List<T> batch){
+        if (batch.isEmpty()){
+            return;
+        }
+        try {
+            sink.accept(batch);
+        } catch (RuntimeException ex){
+            log.error(name + " was interrupted with " + batch.size() + " items it could not flush " + ex.getMessage());
+            abandon(batch);
+        }
+    }
+
+    private void abandon(List<T> batch){
+        try {
+            abandon.accept(batch);
+        } catch (RuntimeException ex){
+            log.error(name + " could not hand over " + batch.size() + " unflushed items " + ex.getMessage());
+        }
     }
 }
 
-@ControllerAdvice
+/**
+ * Write-behind buffer for asynchronous creates. Queued rows are inserted as one multi-row transaction
+ * once batch-size rows are waiting or linger-ms passed since the oldest one was taken.
+ * An accepted create only lives in memory until that commit: a crash loses at most the buffered
+ * window, nothing is pre-authorized before its row is committed, and a batch that fails is retried
+ * row by row so only the offending rows end up FAILED on the status endpoint. Transient errors such as
+ * a lost connection keep the rows buffered until the database is back; the health indicator is DOWN
+ * while the flusher is retrying or dead.
+ */
+@Component
 @Slf4j
-class GlobalExceptionHandler{
-    @ExceptionHandler(Exception.class)
-    public ResponseEntity<ErrorStdMessage> handleGenericException(Exception ex, HttpServletRequest hsr){
-        log.error("Error message " + ex.getMessage() + " Class " + ex.getClass());
-        return ResponseEntity.internalServerError().body(getMessageErr(ex, hsr, HttpStatus.INTERNAL_SERVER_ERROR.value()));
+class PaymentWriteBehindBuffer implements SmartLifecycle, HealthIndicator {
+    static final String INSERT_PAYMENT =
+            "insert into payment (id, payment_number, amount, timestamp, payer, payment_state, version) values (?, ?, ?, ?, ?, ?, 0)";
+    private static final int MAX_FAILED_KEPT = 10_000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final BatchDrainer<PendingCreate> drainer;
+    private final Map<UUID, PendingCreate> pending = new ConcurrentHashMap<>();
+    private final Map<UUID, String> failed = Collections.synchronizedMap(new LinkedHashMap<UUID, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, String> eldest) {
+            return size() > MAX_FAILED_KEPT;
+        }
+    });
+    private final Counter committedRows;
+    private final Counter failedRows;
+    private final Counter commits;
+
+    PaymentWriteBehindBuffer(
+            JdbcTemplate jdbcTemplate,
+            TransactionTemplate transactionTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${app.props.write-behind.capacity:10000}") int capacity,
+            @Value("${app.props.write-behind.batch-size:200}") int batchSize,
+            @Value("${app.props.write-behind.linger-ms:5}") long lingerMillis,
+            @Value("${app.props.write-behind.drain-timeout-ms:30000}") long drainTimeoutMillis){
+
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.drainer = new BatchDrainer<>("payment-write-behind", capacity, batchSize, lingerMillis, drainTimeoutMillis,
+                this::flush, batch -> batch.forEach(create -> failed(create, "Stopped before the row was committed")));
+        this.committedRows = meterRegistry.counter("payment.write.behind.rows", "result", "committed");
+        this.failedRows = meterRegistry.counter("payment.write.behind.rows", "result", "failed");
+        this.commits = meterRegistry.counter("payment.write.behind.commits");
+        Gauge.builder("payment.write.behind.buffered", drainer, BatchDrainer::size).register(meterRegistry);
+        Gauge.builder("payment.write.behind.flusher.healthy", drainer, d -> d.isHealthy() ? 1 : 0).register(meterRegistry);
     }
 
-    @ExceptionHandler(ResourceNotFoundException.class)
-    public ResponseEntity<Void> handleResourceNotFound(ResourceNotFoundException ex){
-        log.warn("Not successfully query from client " + ex.getMessage()); //intern
-        return ResponseEntity.notFound().build();
+    public boolean enqueue(Payment payment, Consumer<Payment> onCommit, Consumer<Payment> onFailure){
+        PendingCreate create = new PendingCreate(payment, onCommit, onFailure);
+        pending.put(payment.getId(), create);
+        if (!drainer.offer(create)){
+            pending.remove(payment.getId());
+            return false;
+        }
+        return true;
     }
-    @ExceptionHandler(MethodArgumentNotValidException.class)
-    public ResponseEntity<ErrorStdMessage> handleResourceNotFound(MethodArgumentNotValidException ex, HttpServletRequest hsr){
-        return ResponseEntity.unprocessableEntity().body(getMessageErr(ex, hsr, HttpStatus.UNPROCESSABLE_ENTITY.value()));
+
+    public AsyncCreateStatus status(UUID id){
+        if (pending.containsKey(id)){
+            return AsyncCreateStatus.builder().id(id).state(AsyncCreateState.PENDING).build();
+        }
+        String reason = failed.get(id);
+        if (reason != null){
+            return AsyncCreateStatus.builder().id(id).state(AsyncCreateState.FAILED).reason(reason).build();
+        }
+        return null;
     }
 
-    private ErrorStdMessage getMessageErr(Exception ex, HttpServletRequest hsr, Integer code){
+    /**
+     * Rows are removed from the batch once they are committed or FAILED, so whatever a transient error
+     * leaves behind is retried by the drainer.
+     */
+    void flush(List<PendingCreate> batch){
+        try {
+            transactionTemplate.executeWithoutResult(status -> insert(batch));
+            commits.increment();
+            batch.forEach(this::committed);
+            batch.clear();
+        } catch (DataAccessException ex){
+            if (BatchDrainer.isTransient(ex)){
+                throw ex;
+            }
+            log.warn("Group commit of " + batch.size() + " payments failed, retrying one by one " + ex.getMessage());
+            for (Iterator<PendingCreate> it = batch.iterator(); it.hasNext();){
+                PendingCreate create = it.next();
+                try {
+                    transactionTemplate.executeWithoutResult(status -> insert(List.of(create)));
+                    commits.increment();
+                    committed(create);
+                } catch (DataAccessException rowEx){
+                    if (BatchDrainer.isTransient(rowEx)){
+                        throw rowEx;
+                    }
+                    failed(create, rowEx.getMessage());
+                }
+                it.remove();
+            }
+        }
+    }
 
-        return ErrorStdMessage
-                .builder()
-                .message(ex.getMessage())
-                .timestamp(LocalDateTime.now())
-                .statusCode(code)
-                .path(hsr.getRequestURI())
-                .build();
+    private void insert(List<PendingCreate> batch){
+        jdbcTemplate.batchUpdate(INSERT_PAYMENT, batch, batch.size(), (PreparedStatement ps, PendingCreate create) -> {
+            Payment payment = create.payment();
+            ps.setString(1, payment.getId().toString());
+            ps.setInt(2, payment.getPaymentNumber());
+            ps.setBigDecimal(3, payment.getAmount());
+            ps.setTimestamp(4, Timestamp.from(payment.getTimestamp()), Calendar.getInstance(TimeZone.getTimeZone("UTC")));
+            ps.setString(5, payment.getPayerName());
+            ps.setString(6, payment.getPaymentState().name());
+        });
+    }
+
+    private void committed(PendingCreate create){
+        pending.remove(create.payment().getId());
+        committedRows.increment();
+        try {
+            create.onCommit().accept(create.payment());
+        } catch (RuntimeException ex){
+            log.error("Post commit step failed for payment " + create.payment().getPaymentNumber() + " " + ex.getMessage());
+        }
+    }
+
+    private void failed(PendingCreate create, String reason){
+        failed.put(create.payment().getId(), reason);
+        pending.remove(create.payment().getId());
+        failedRows.increment();
+        log.error("Buffered payment " + create.payment().getId() + " was not persisted " + reason);
+        create.onFailure().accept(create.payment());
+    }
+
+    @Override
+    public Health health(){
+        Health.Builder health = !drainer.isRunning() ? Health.outOfService() : drainer.isHealthy() ? Health.up() : Health.down();
+        return health.withDetail("buffered", drainer.size()).build();
+    }
+
+    @Override
+    public void start(){
+        drainer.start();
+    }
+
+    @Override
+    public void stop(){
+        // stop accepting and let the flusher drain what was already acknowledged
+        drainer.stop();
     }
 
+    @Override
+    public boolean isRunning(){
+        return drainer.isRunning();
+    }
 }
 
-@Builder
-record ErrorStdMessage(
-        String message,
-        String path,
-        @JsonProperty("code")
-        Integer statusCode,
-        @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss'Z'")
-        LocalDateTime timestamp
-){ }
+/**
+ * Append-only log of state transitions. Transitions are queued by the state machine listener and
+ * inserted in multi-row batches once batch-size are waiting or linger-ms passed, so a burst of
+ * transitions costs a few narrow inserts instead of one wide row rewrite each. When the queue is
+ * full the caller inserts its own row. A batch the database refuses is retried row by row, and one
+ * that fails on a lost connection stays queued until the database is back; only a row the database
+ * rejects outright, or one still unwritten drain-timeout-ms after stop, is logged and skipped.
+ * payment_state stays the projection the state machine guards on; rebuildProjection recomputes it
+ * from the last transition of every payment, in parallel chunks.
+ */
+@Component
+@Slf4j
+class PaymentTransitionLog implements SmartLifecycle {
+    static final String INSERT_TRANSITION =
+            "insert into payment_transition (payment_id, payment_number, from_state, to_state, event, occurred_at) values (?, ?, ?, ?, ?, ?)";
+    static final String LATEST_STATES =
+            "select t.payment_id, t.to_state from payment_transition t join ("
+                    + "select payment_id, max(sequence_number) last_sequence from payment_transition group by payment_id"
+                    + ") l on t.payment_id = l.payment_id and t.sequence_number = l.last_sequence";
+    static final String PROJECT_STATE =
+            "update payment set payment_state = ?, version = version + 1 where id = ? and (payment_state is null or payment_state <> ?)";
 
-@Configuration
-@EnableCaching
-@RequiredArgsConstructor
-class RedisConfig {
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final BatchDrainer<PaymentTransition> drainer;
+    private final int batchSize;
+    private final Counter appended;
+    private final Counter batches;
+    private final Counter skipped;
 
-    private final ObjectMapper objectMapper;
-    private final RedisConnectionFactory connectionFactory;
-    @Bean
-    public RedisCacheManager cacheManager() {
-        RedisCacheConfiguration config = RedisCacheConfiguration
-                .defaultCacheConfig()
-                .entryTtl(Duration.ofMinutes(3))
-                .disableCachingNullValues();
+    @Value("${app.props.transitions.rebuild-on-start:false}")
+    private boolean rebuildOnStart;
+
+    PaymentTransitionLog(
+            JdbcTemplate jdbcTemplate,
+            TransactionTemplate transactionTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${app.props.transitions.capacity:50000}") int capacity,
+            @Value("${app.props.transitions.batch-size:500}") int batchSize,
+            @Value("${app.props.transitions.linger-ms:20}") long lingerMillis,
+            @Value("${app.props.transitions.drain-timeout-ms:30000}") long drainTimeoutMillis){
+
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.drainer = new BatchDrainer<>("payment-transition-log", capacity, batchSize, lingerMillis, drainTimeoutMillis,
+                this::flush, batch -> skip(batch, "still unwritten after stop"));
+        this.batchSize = batchSize;
+        this.appended = meterRegistry.counter("payment.transitions.appended");
+        this.batches = meterRegistry.counter("payment.transitions.batches");
+        this.skipped = meterRegistry.counter("payment.transitions.skipped");
+        Gauge.builder("payment.transitions.buffered", drainer, BatchDrainer::size).register(meterRegistry);
+        Gauge.builder("payment.transitions.flusher.healthy", drainer, d -> d.isHealthy() ? 1 : 0).register(meterRegistry);
+    }
+
+    public void append(PaymentTransition transition){
+        if (!drainer.offer(transition)){
+            try {
+                flush(new ArrayList<>(List.of(transition)));
+            } catch (RuntimeException ex){
+                skip(List.of(transition), ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rows are removed from the batch once they are written or skipped, so whatever a transient error
+     * leaves behind is retried by the drainer.
+     */
+    void flush(List<PaymentTransition> batch){
+        try {
+            // one transaction, so a batch that fails half way is not partly written before its retry
+            transactionTemplate.executeWithoutResult(status -> insert(batch));
+            appended.increment(batch.size());
+            batches.increment();
+        } catch (DataAccessException ex){
+            if (BatchDrainer.isTransient(ex)){
+                throw ex;
+            }
+            log.warn("Transitions of " + batch.size() + " payments not appended as a batch, retrying one by one " + ex.getMessage());
+            for (Iterator<PaymentTransition> it = batch.iterator(); it.hasNext();){
+                PaymentTransition transition = it.next();
+                try {
+                    insert(List.of(transition));
+                    appended.increment();
+                } catch (DataAccessException rowEx){
+                    if (BatchDrainer.isTransient(rowEx)){
+                        throw rowEx;
+                    }
+                    skip(List.of(transition), rowEx.getMessage());
+                }
+                it.remove();
+            }
+        }
+    }
+
+    private void insert(List<PaymentTransition> batch){
+        jdbcTemplate.batchUpdate(INSERT_TRANSITION, batch, batch.size(), (PreparedStatement ps, PaymentTransition transition) -> {
+            ps.setString(1, transition.getPaymentId().toString());
+            ps.setObject(2, transition.getPaymentNumber());
+            ps.setString(3, transition.getFromState() == null ? null : transition.getFromState().name());
+            ps.setString(4, transition.getToState() == null ? null : transition.getToState().name());
+            ps.setString(5, transition.getEvent() == null ? null : transition.getEvent().name());
+            ps.setTimestamp(6, Timestamp.from(transition.getOccurredAt()), Calendar.getInstance(TimeZone.getTimeZone("UTC")));
+        });
+    }
+
+    private void skip(List<PaymentTransition> transitions, String reason){
+        skipped.increment(transitions.size());
+        transitions.forEach(transition -> log.error("Transition " + transition.getFromState() + " -> " + transition.getToState()
+                + " of payment " + transition.getPaymentId() + " was not appended " + reason));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildIfRequested(){
+        if (rebuildOnStart){
+            log.info("Rebuilt payment_state of " + rebuildProjection() + " payments from the transition log");
+        }
+    }
+
+    public int rebuildProjection(){
+        List<Object[]> latest = jdbcTemplate.query(LATEST_STATES, (rs, rowNum) -> new Object[]{
+                rs.getString("to_state"), rs.getString("payment_id"), rs.getString("to_state")});
+        List<List<Object[]>> chunks = new ArrayList<>();
+        for (int from = 0; from < latest.size(); from += batchSize){
+            chunks.add(latest.subList(from, Math.min(from + batchSize, latest.size())));
+        }
+        return chunks
+                .parallelStream()
+                .mapToInt(chunk -> Arrays.stream(jdbcTemplate.batchUpdate(PROJECT_STATE, chunk)).sum())
+                .sum();
+    }
+
+    @Override
+    public void start(){
+        drainer.start();
+    }
+
+    @Override
+    public void stop(){
+        // the state machines stop first, whatever they queued is still appended
+        drainer.stop();
+    }
+
+    @Override
+    public boolean isRunning(){
+        return drainer.isRunning();
+    }
+}
+
+class AdmissionRejectedException extends RuntimeException {
+    private final long retryAfterSeconds;
+    public AdmissionRejectedException(long retryAfterSeconds) {
+        super("Payment creation is over the admission limit");
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
+
+class PayerThrottledException extends RuntimeException {
+    private final long retryAfterSeconds;
+    public PayerThrottledException(String payerName, long retryAfterSeconds) {
+        super("Payer " + payerName + " is over its rate limit");
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
+
+/**
+ * Per payer token bucket on payment creation, shared by every node through Redis. A node takes a
+ * lease of a few tokens at once with one atomic script call and spends it locally, so only about one
+ * request in lease-size makes the round trip. Unspent tokens of a lease expire after lease-ms, which
+ * bounds how far a node can run ahead of the shared budget. Limits are requests per second with a
+ * burst, per payer in app.props.rate-limit.payers or the default; a payer rate of 0 throttles every
+ * request of that payer without a round trip. While Redis is unreachable payers
+ * are not throttled, the admission controller still bounds the load. Leases are held for at most
+ * max-payers payers and dropped once expired; past that cap every request goes to the shared bucket.
+ */
+@Component
+@Slf4j
+class PayerRateLimiter {
+    static final String KEY_PREFIX = "rate:payer:";
+    static final long BLOCKED_RETRY_AFTER_SECONDS = 60;
+    static final RedisScript<Long> TAKE_TOKENS = new DefaultRedisScript<>("""
+            local rate = tonumber(ARGV[1])
+            local burst = tonumber(ARGV[2])
+            local wanted = tonumber(ARGV[3])
+            local time = redis.call('TIME')
+            local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+            local bucket = redis.call('HMGET', KEYS[1], 'tokens', 'at')
+            local tokens = tonumber(bucket[1]) or burst
+            local at = tonumber(bucket[2]) or now
+            tokens = math.min(burst, tokens + math.max(0, now - at) * rate / 1000)
+            local granted = math.min(wanted, math.floor(tokens))
+            redis.call('HSET', KEYS[1], 'tokens', tostring(tokens - granted), 'at', now)
+            redis.call('PEXPIRE', KEYS[1], math.ceil(burst * 1000 / rate) + 1000)
+            return granted
+            """, Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final MeterRegistry meterRegistry;
+    private final int defaultRate;
+    private final int defaultBurst;
+    private final Map<String, Integer> payerRates;
+    private final long leaseMillis;
+    private final int maxPayers;
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Lease>> renewals = new ConcurrentHashMap<>();
+    private final Counter scriptCalls;
+    private final Counter failedOpen;
+
+    PayerRateLimiter(
+            StringRedisTemplate stringRedisTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${app.props.rate-limit.default-rate:50}") int defaultRate,
+            @Value("${app.props.rate-limit.default-burst:100}") int defaultBurst,
+            @Value("#{${app.props.rate-limit.payers:{:}}}") Map<String, Integer> payerRates,
+            @Value("${app.props.rate-limit.lease-ms:100}") long leaseMillis,
+            @Value("${app.props.rate-limit.max-payers:100000}") int maxPayers){
+
+        if (defaultRate <= 0 || defaultBurst <= 0){
+            throw new IllegalArgumentException("Default rate and burst must be positive, got " + defaultRate + " and " + defaultBurst);
+        }
+        payerRates.forEach((payerName, rate) -> {
+            if (rate == null || rate < 0){
+                throw new IllegalArgumentException("Rate of payer " + payerName + " must be 0 or more, got " + rate);
+            }
+        });
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+        this.defaultRate = defaultRate;
+        this.defaultBurst = defaultBurst;
+        this.payerRates = payerRates;
+        this.leaseMillis = leaseMillis;
+        this.maxPayers = maxPayers;
+        this.scriptCalls = meterRegistry.counter("payment.rate.limit.script.calls");
+        this.failedOpen = meterRegistry.counter("payment.rate.limit.failed.open");
+        Gauge.builder("payment.rate.limit.leases", leases, Map::size).register(meterRegistry);
+    }
+
+    public void acquire(String payerName){
+        if (rateOf(payerName) == 0){
+            throttle(payerName);
+        }
+        while (true){
+            Lease lease = leases.get(payerName);
+            if (lease != null && lease.tryTake()){
+                return;
+            }
+            if (lease != null && lease.isDenied()){
+                throttle(payerName);
+            }
+            // one renewal per payer at a time, the others wait for it and take from what it brought back
+            CompletableFuture<Lease> mine = new CompletableFuture<>();
+            CompletableFuture<Lease> running = renewals.putIfAbsent(payerName, mine);
+            if (running == null){
+                try {
+                    // past the cap a payer takes single tokens, a lease nobody keeps would waste the rest
+                    boolean keep = leases.size() < maxPayers || leases.containsKey(payerName);
+                    Lease renewed = renew(payerName, keep);
+                    if (keep){
+                        leases.put(payerName, renewed);
+                    }
+                    mine.complete(renewed);
+                    if (renewed.isDenied()){
+                        throttle(payerName);
+                    }
+                    return;
+                } finally {
+                    renewals.remove(payerName, mine);
+                    mine.complete(null);
+                }
+            }
+            Lease renewed = running.join();
+            if (renewed != null && renewed.isDenied()){
+                throttle(payerName);
+            }
+            if (renewed != null && renewed.tryTake()){
+                return;
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${app.props.rate-limit.prune-ms:10000}")
+    public void pruneExpired(){
+        long now = System.currentTimeMillis();
+        leases.values().removeIf(lease -> now >= lease.expiresAt());
+    }
+
+    private void throttle(String payerName){
+        meterRegistry
+                .counter("payment.rate.limit.throttled", "limit", payerRates.containsKey(payerName) ? "payer" : "default")
+                .increment();
+        int rate = rateOf(payerName);
+        throw new PayerThrottledException(payerName, rate == 0 ? BLOCKED_RETRY_AFTER_SECONDS : Math.max(1, (long) Math.ceil(1.0 / rate)));
+    }
+
+    /**
+     * Takes a new lease from the shared bucket with the caller's own token already spent. When the
+     * bucket is empty the lease is a denial that holds until about one token has been refilled.
+     */
+    private Lease renew(String payerName, boolean lease){
+        int rate = rateOf(payerName);
+        // the burst scales with the rate the way the default burst does with the default rate
+        int burst = Math.max(1, (int) ((long) defaultBurst * rate / defaultRate));
+        int wanted = lease ? (int) Math.max(1, Math.min(burst, rate * leaseMillis / 1000)) : 1;
+        long now = System.currentTimeMillis();
+        long granted;
+        try {
+            granted = take(payerName, rate, burst, wanted);
+        } catch (Exception ex){
+            failedOpen.increment();
+            log.debug("Rate limit of payer " + payerName + " not checked " + ex.getMessage());
+            granted = wanted;
+        }
+        if (granted <= 0){
+            return new Lease(new AtomicInteger(), now + Math.max(1, Math.min(leaseMillis, 1000 / rate)), true);
+        }
+        return new Lease(new AtomicInteger((int) granted - 1), now + leaseMillis, false);
+    }
+
+    long take(String payerName, int rate, int burst, int wanted){
+        scriptCalls.increment();
+        Long granted = stringRedisTemplate.execute(
+                TAKE_TOKENS,
+                List.of(KEY_PREFIX + payerName),
+                String.valueOf(rate),
+                String.valueOf(burst),
+                String.valueOf(wanted));
+        return granted == null ? 0 : granted;
+    }
+
+    private int rateOf(String payerName){
+        return payerRates.getOrDefault(payerName, defaultRate);
+    }
+
+    record Lease(AtomicInteger tokens, long expiresAt, boolean denied) {
+        boolean isDenied(){
+            return denied && System.currentTimeMillis() < expiresAt;
+        }
+
+        boolean tryTake(){
+            if (denied || System.currentTimeMillis() >= expiresAt){
+                return false;
+            }
+            while (true){
+                int left = tokens.get();
+                if (left <= 0){
+                    return false;
+                }
+                if (tokens.compareAndSet(left, left - 1)){
+                    return true;
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Adaptive concurrency limit on payment creation. An admitted payment holds a permit until its
+ * pre-authorization response arrives. The limit grows additively while the round trip stays close
+ * to the best one observed and backs off multiplicatively on latency inflation, permits timing out
+ * or messages piling up on the pre-authorization queues.
+ */
+@Component
+@Slf4j
+class AdmissionController {
+    private static final int MIN_RTT_RESET_PROBES = 60;
+
+    @Value("${app.props.admission.min-limit:10}")
+    private int minLimit;
+    @Value("${app.props.admission.max-limit:1000}")
+    private int maxLimit;
+    @Value("${app.props.admission.latency-tolerance:2.0}")
+    private double latencyTolerance;
+    @Value("${app.props.admission.backoff-ratio:0.9}")
+    private double backoffRatio;
+    @Value("${app.props.admission.timeout-ms:30000}")
+    private long timeoutMillis;
+    @Value("${app.props.admission.max-queue-lag:1000}")
+    private long maxQueueLag;
+
+    private final AmqpAdmin amqpAdmin;
+    private final List<String> lagQueues;
+    private final Counter rejected;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Map<Integer, Long> pending = new ConcurrentHashMap<>();
+    private volatile double limit;
+    private volatile long minRttNanos = Long.MAX_VALUE;
+    private volatile long smoothedRttNanos;
+    private int probes;
+
+    AdmissionController(
+            AmqpAdmin amqpAdmin,
+            ShardRouter shardRouter,
+            MeterRegistry meterRegistry,
+            @Value("${app.props.admission.initial-limit:50}") int initialLimit){
+
+        this.amqpAdmin = amqpAdmin;
+        this.lagQueues = lagQueues(shardRouter);
+        this.limit = initialLimit;
+        this.rejected = meterRegistry.counter("payment.admission.rejected");
+        Gauge.builder("payment.admission.limit", this, controller -> controller.limit).register(meterRegistry);
+        Gauge.builder("payment.admission.in.flight", inFlight, AtomicInteger::get).register(meterRegistry);
+    }
+
+    public boolean tryAcquire(){
+        while (true){
+            int current = inFlight.get();
+            if (current >= (int) limit){
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)){
+                return true;
+            }
+        }
+    }
+
+    public void track(Integer paymentNumber){
+        pending.put(paymentNumber, System.nanoTime());
+    }
+
+    public void release(){
+        inFlight.decrementAndGet();
+    }
+
+    public void complete(Integer paymentNumber){
+        Long start = paymentNumber == null ? null : pending.remove(paymentNumber);
+        if (start == null){
+            // timed out already or admitted by another node
+            return;
+        }
+        release();
+        onSample(System.nanoTime() - start);
+    }
+
+    public long retryAfterSeconds(){
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(smoothedRttNanos) + 1);
+    }
+
+    @Scheduled(fixedDelayString = "${app.props.admission.probe-interval-ms:1000}")
+    public void probe(){
+        long now = System.nanoTime();
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        int expired = 0;
+        for (Map.Entry<Integer, Long> entry : pending.entrySet()){
+            if (now - entry.getValue() > timeoutNanos && pending.remove(entry.getKey(), entry.getValue())){
+                release();
+                expired++;
+            }
+        }
+        if (expired > 0 || queueLag() > maxQueueLag){
+            backOff();
+        }
+        if (++probes % MIN_RTT_RESET_PROBES == 0){
+            // let the baseline follow lasting shifts in the round trip
+            minRttNanos = Long.MAX_VALUE;
+        }
+    }
+
+    private synchronized void onSample(long rttNanos){
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+        smoothedRttNanos = smoothedRttNanos == 0 ? rttNanos : (smoothedRttNanos * 7 + rttNanos) / 8;
+        if (rttNanos > minRttNanos * latencyTolerance){
+            backOff();
+        } else if (inFlight.get() * 2 >= limit){
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    private synchronized void backOff(){
+        limit = Math.max(minLimit, limit * backoffRatio);
+    }
+
+    // every request lane and every queue responses can come back on
+    private static List<String> lagQueues(ShardRouter shardRouter){
+        List<String> queues = new ArrayList<>();
+        for (PriorityLane lane : PriorityLane.values()){
+            queues.add(lane.queue);
+        }
+        queues.add(RabbitConfig.PAYMENT_PRE_AUTHORIZE_RESPONSE_QUEUE);
+        if (shardRouter.isEnabled()){
+            for (int shard = 0; shard < shardRouter.shardCount(); shard++){
+                queues.add(ShardRouter.queueName(shard));
+            }
+        }
+        return List.copyOf(queues);
+    }
+
+    private long queueLag(){
+        try {
+            long lag = 0;
+            for (String queue : lagQueues){
+                lag += messageCount(queue);
+            }
+            return lag;
+        } catch (AmqpException ex){
+            log.warn("Could not read queue depth " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    private long messageCount(String queue){
+        QueueInformation info = amqpAdmin.getQueueInfo(queue);
+        return info == null ? 0 : info.getMessageCount();
+    }
+}
+
+@Builder
+record PayerSearchHit(
+        @JsonProperty("id") UUID id,
+        @JsonProperty("payment_number") Integer paymentNumber,
+        @JsonProperty("payer_name") String payerName
+) { }
+
+/**
+ * Keyset ranges over payment ids, for readers that split a full scan. Ids are compared as strings,
+ * so the ranges split the leading hex digits evenly; each reader pages its range with id > last.
+ */
+final class IdRanges {
+    static final UUID LAST_ID = UUID.fromString("ffffffff-ffff-ffff-ffff-ffffffffffff");
+
+    private IdRanges(){ }
+
+    static UUID lowerBound(int range, int ranges){
+        long leading = 0x10000L * range / ranges;
+        return UUID.fromString(String.format("%04x0000-0000-0000-0000-000000000000", leading));
+    }
+
+    static UUID upperBound(int range, int ranges){
+        return range + 1 < ranges ? lowerBound(range + 1, ranges) : LAST_ID;
+    }
+}
+
+/**
+ * In-memory prefix index over payer names, folded to lower case without accents. Every word start of
+ * a name is a key, so "gre" finds "John Green" and "joao" finds "João". Keys live in a skip list so a
+ * prefix is a range scan. Built once the application is ready by one keyset paged reader per id
+ * range, so creates landing meanwhile cannot shift rows out of a page, and fed by every create. A
+ * failed build leaves the index with what creates added and is retried on the next start.
+ */
+@Component
+@Slf4j
+class PayerSearchIndex {
+    private static final java.util.regex.Pattern COMBINING_MARKS = java.util.regex.Pattern.compile("\\p{M}+");
+    private static final java.util.regex.Pattern WHITESPACE = java.util.regex.Pattern.compile("\\s+");
+    private static final Comparator<PayerSearchHit> HIT_ORDER = Comparator
+            .comparing(PayerSearchHit::paymentNumber)
+            .thenComparing(PayerSearchHit::id);
+
+    private final PaymentRepository paymentRepository;
+    private final ConcurrentSkipListMap<String, Set<PayerSearchHit>> index = new ConcurrentSkipListMap<>();
+
+    @Value("${app.props.search.rebuild-page-size:5000}")
+    private int rebuildPageSize;
+
+    @Value("${app.props.search.rebuild-threads:4}")
+    private int rebuildThreads;
+
+    PayerSearchIndex(PaymentRepository paymentRepository) {
+        this.paymentRepository = paymentRepository;
+    }
+
+    static String fold(String name){
+        String decomposed = Normalizer.normalize(name.trim(), Normalizer.Form.NFD);
+        String unmarked = COMBINING_MARKS.matcher(decomposed).replaceAll("");
+        return WHITESPACE.matcher(unmarked).replaceAll(" ").toLowerCase(Locale.ROOT);
+    }
+
+    public void add(Payment payment){
+        add(PayerSearchHit
+                .builder()
+                .id(payment.getId())
+                .paymentNumber(payment.getPaymentNumber())
+                .payerName(payment.getPayerName())
+                .build());
+    }
+
+    public void add(PayerSearchHit hit){
+        String[] words = fold(hit.payerName()).split(" ");
+        for (int i = 0; i < words.length; i++){
+            String key = String.join(" ", Arrays.copyOfRange(words, i, words.length));
+            index.computeIfAbsent(key, k -> new ConcurrentSkipListSet<>(HIT_ORDER)).add(hit);
+        }
+    }
+
+    public List<PayerSearchHit> search(String prefix, int offset, int limit){
+        String folded = prefix == null ? "" : fold(prefix);
+        if (folded.isEmpty()){
+            return List.of();
+        }
+        // a payment shows up under several word keys, keep its first (best ordered) occurrence
+        Map<UUID, PayerSearchHit> hits = new LinkedHashMap<>();
+        for (Set<PayerSearchHit> bucket : index.subMap(folded, true, folded + Character.MAX_VALUE, true).values()){
+            for (PayerSearchHit hit : bucket){
+                hits.putIfAbsent(hit.id(), hit);
+                if (hits.size() >= offset + limit){
+                    return page(hits, offset);
+                }
+            }
+        }
+        return page(hits, offset);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild(){
+        long start = System.nanoTime();
+        int ranges = Math.max(1, rebuildThreads);
+        AtomicLong loaded = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(ranges);
+        try {
+            CompletableFuture<?>[] loads = new CompletableFuture<?>[ranges];
+            for (int range = 0; range < ranges; range++){
+                UUID after = IdRanges.lowerBound(range, ranges);
+                UUID upTo = IdRanges.upperBound(range, ranges);
+                loads[range] = CompletableFuture.runAsync(() -> loaded.addAndGet(load(after, upTo)), executor);
+            }
+            CompletableFuture.allOf(loads).join();
+            log.info("Payer search index built with " + loaded.get() + " payments in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (CompletionException ex){
+            log.error("Payer search index build stopped after " + loaded.get() + " payments " + ex.getCause().getMessage());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private long load(UUID after, UUID upTo){
+        long loaded = 0;
+        while (true){
+            List<Object[]> rows = paymentRepository.findSearchEntriesAfter(after, upTo, PageRequest.of(0, rebuildPageSize));
+            rows.forEach(row -> add(new PayerSearchHit((UUID) row[0], (Integer) row[1], (String) row[2])));
+            loaded += rows.size();
+            if (rows.size() < rebuildPageSize){
+                return loaded;
+            }
+            after = (UUID) rows.get(rows.size() - 1)[0];
+        }
+    }
+
+    private static List<PayerSearchHit> page(Map<UUID, PayerSearchHit> hits, int offset){
+        return hits.values().stream().skip(offset).toList();
+    }
+}
+
+/**
+ * Timing headers of a pre-authorization round trip. Each service stamps wall clock instants where
+ * a message crosses a process boundary and monotonic durations for its own work, so queue waits are
+ * as exact as the two clocks are in sync while handler times are exact. pre-authorize copies every
+ * header with these prefixes back onto its reply.
+ */
+final class HopTrace {
+    static final String TRACE_ID = "x-trace-id";
+    static final String PAYMENT_NUMBER = "x-trace-payment-number";
+    static final String LANE = "x-trace-lane";
+    static final String PUBLISHED_AT = "x-hop-published-at";
+    static final String RECEIVED_AT = "x-hop-received-at";
+    static final String HANDLER_NANOS = "x-hop-handler-nanos";
+    static final String REPLIED_AT = "x-hop-replied-at";
+
+    private HopTrace(){ }
+
+    static Long longHeader(MessageProperties properties, String name){
+        Object value = properties.getHeader(name);
+        if (value instanceof Number number){
+            return number.longValue();
+        }
+        try {
+            return value == null ? null : Long.valueOf(value.toString());
+        } catch (NumberFormatException ex){
+            return null;
+        }
+    }
+}
+
+/**
+ * Latency-bounded access to the payment lookups kept on Redis. A read that has not answered within
+ * hedge-after-ms is abandoned to a database read on the caller's thread, so a slow Redis adds at
+ * most the hedge delay to a lookup, even while every read worker is stuck. Reads that fail or outlast timeout-ms count against a
+ * circuit breaker; after failure-threshold of them in a row Redis is bypassed for open-ms, then a
+ * single trial read decides whether it closes again. Cache fills are queued and coalesced per key,
+ * the response never waits on the set. A database answer is filled back, hedged or not.
+ * An eviction leaves a tombstone for tombstone-ms, and a fill is a script that skips keys with one,
+ * so a lookup that read the database just before a transition does not put the previous version back
+ * unless its fill reaches Redis more than tombstone-ms after the eviction.
+ */
+@Component
+@Slf4j
+class RedisLookupCache {
+    private static final Duration LOOKUP_TTL = Duration.ofMinutes(3);
+
+    private final RedisTemplate<String, PaymentDto> redisTemplate;
+    private final MeterRegistry meterRegistry;
+    private final long hedgeAfterMillis;
+    private final long timeoutMillis;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final ThreadPoolExecutor readExecutor;
+    private final ThreadPoolExecutor fillExecutor;
+    private final RedisScript<Long> fillUnlessEvicted;
+    private final RedisScript<Long> evictWithTombstone;
+    private final Map<String, PaymentDto> pendingFills = new ConcurrentHashMap<>();
+    private final Set<String> evictedWhileWarming = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean trialInFlight = new AtomicBoolean();
+    private final Timer waited;
+    private final Counter lookups;
+    private volatile long openUntil;
+    private volatile boolean warming;
+
+    RedisLookupCache(
+            RedisTemplate<String, PaymentDto> redisTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${app.props.redis.hedge-after-ms:5}") long hedgeAfterMillis,
+            @Value("${app.props.redis.timeout-ms:50}") long timeoutMillis,
+            @Value("${app.props.redis.breaker.failure-threshold:5}") int failureThreshold,
+            @Value("${app.props.redis.breaker.open-ms:5000}") long openMillis,
+            @Value("${app.props.redis.lookup-threads:16}") int lookupThreads,
+            @Value("${app.props.redis.fill-queue:1000}") int fillQueue,
+            @Value("${app.props.redis.tombstone-ms:2000}") long tombstoneMillis){
+
+        this.redisTemplate = redisTemplate;
+        this.meterRegistry = meterRegistry;
+        this.hedgeAfterMillis = hedgeAfterMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.readExecutor = new ThreadPoolExecutor(lookupThreads, lookupThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(lookupThreads * 4), daemon("redis-lookup"));
+        this.fillExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(fillQueue), daemon("redis-fill"));
+        this.fillUnlessEvicted = new DefaultRedisScript<>("""
+                if redis.call('EXISTS', KEYS[2]) == 1 then
+                    return 0
+                end
+                redis.call('SET', KEYS[1], ARGV[1], 'PX', %d)
+                return 1
+                """.formatted(LOOKUP_TTL.toMillis()), Long.class);
+        this.evictWithTombstone = new DefaultRedisScript<>("""
+                for i = 1, #KEYS, 2 do
+                    redis.call('DEL', KEYS[i])
+                    redis.call('SET', KEYS[i + 1], '1', 'PX', %d)
+                end
+                return 1
+                """.formatted(tombstoneMillis), Long.class);
+        this.waited = meterRegistry.timer("payment.redis.wait");
+        this.lookups = meterRegistry.counter("payment.redis.lookups");
+        Gauge.builder("payment.redis.breaker.open", this, cache -> cache.isOpen() ? 1 : 0).register(meterRegistry);
+    }
+
+    public PaymentDto lookup(String key, Supplier<PaymentDto> fromDb){
+        lookups.increment();
+        if (!allowRequest()){
+            bypassed("open");
+            return fromDb.get();
+        }
+        long start = System.nanoTime();
+        CompletableFuture<PaymentDto> cached;
+        try {
+            cached = CompletableFuture.supplyAsync(() -> read(key), readExecutor);
+        } catch (RejectedExecutionException ex){
+            trialInFlight.set(false);
+            bypassed("saturated");
+            return fromDb.get();
+        }
+        // a read slower than timeout-ms counts against the breaker even when the hedge already answered
+        cached
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((value, ex) -> {
+                    if (ex == null){
+                        onSuccess();
+                    } else {
+                        onFailure();
+                    }
+                });
+        try {
+            PaymentDto hit = cached.get(hedgeAfterMillis, TimeUnit.MILLISECONDS);
+            waited.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (hit != null){
+                return hit;
+            }
+            PaymentDto found = fromDb.get();
+            fill(key, found);
+            return found;
+        } catch (TimeoutException ex){
+            return hedge(key, fromDb, start);
+        } catch (ExecutionException ex){
+            waited.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            bypassed("error");
+            return fromDb.get();
+        } catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            bypassed("interrupted");
+            return fromDb.get();
+        }
+    }
+
+    private PaymentDto hedge(String key, Supplier<PaymentDto> fromDb, long start){
+        // loaded on the caller's thread, the read workers may all be stuck on the slow reads it bypasses
+        bypassed("hedged");
+        PaymentDto found = fromDb.get();
+        waited.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (found != null){
+            fill(key, found);
+        }
+        return found;
+    }
+
+    public void evict(UUID id, Integer paymentNumber){
+        List<String> keys = paymentNumber == null ? List.of(id.toString()) : List.of(id.toString(), paymentNumber.toString());
+        // a fill still queued would put the previous version back
+        keys.forEach(pendingFills::remove);
+        if (warming){
+            evictedWhileWarming.addAll(keys);
+        }
+        try {
+            delete(keys);
+        } catch (Exception ex){
+            log.warn("Cached lookups of payment " + id + " not evicted " + ex.getMessage());
+        }
+    }
+
+    void fill(String key, PaymentDto dto){
+        if (isOpen() || pendingFills.put(key, dto) != null){
+            // while open the fill would only add load, and a queued fill already carries the latest value
+            return;
+        }
+        try {
+            fillExecutor.execute(() -> {
+                PaymentDto latest = pendingFills.remove(key);
+                if (latest == null){
+                    return;
+                }
+                try {
+                    write(key, latest);
+                } catch (Exception ex){
+                    onFailure();
+                }
+            });
+        } catch (RejectedExecutionException ex){
+            pendingFills.remove(key);
+            meterRegistry.counter("payment.redis.fill.dropped").increment();
+        }
+    }
+
+    public void beginWarmUp(){
+        warming = true;
+    }
+
+    public void endWarmUp(){
+        warming = false;
+        evictedWhileWarming.clear();
+    }
+
+    /**
+     * Writes a page of payments read by the startup warm-up in one pipeline. The page was read before
+     * it is written, so keys evicted in between are skipped, and deleted again if the eviction landed
+     * while the pipeline was in flight.
+     */
+    public void warm(Map<String, PaymentDto> entries){
+        if (!warming || isOpen()){
+            return;
+        }
+        Map<String, PaymentDto> fresh = new HashMap<>(entries);
+        fresh.keySet().removeIf(key -> evictedWhileWarming.contains(key) || pendingFills.containsKey(key));
+        if (fresh.isEmpty()){
+            return;
+        }
+        try {
+            writeAll(fresh);
+            List<String> raced = fresh.keySet().stream().filter(evictedWhileWarming::contains).toList();
+            if (!raced.isEmpty()){
+                delete(raced);
+            }
+        } catch (Exception ex){
+            onFailure();
+            throw ex;
+        }
+    }
+
+    PaymentDto read(String key){
+        return redisTemplate.opsForValue().get(key);
+    }
+
+    void write(String key, PaymentDto dto){
+        redisTemplate.execute(fillUnlessEvicted, List.of(key, tombstone(key)), dto);
+    }
+
+    void writeAll(Map<String, PaymentDto> entries){
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, PaymentDto> pipeline = (RedisOperations<String, PaymentDto>) operations;
+                entries.forEach((key, dto) -> pipeline.opsForValue().set(key, dto, LOOKUP_TTL));
+                return null;
+            }
+        });
+    }
+
+    void delete(List<String> keys){
+        List<String> keysAndTombstones = new ArrayList<>(keys.size() * 2);
+        keys.forEach(key -> {
+            keysAndTombstones.add(key);
+            keysAndTombstones.add(tombstone(key));
+        });
+        redisTemplate.execute(evictWithTombstone, keysAndTombstones);
+    }
+
+    private static String tombstone(String key){
+        return key + ":evicted";
+    }
+
+    boolean isOpen(){
+        return consecutiveFailures.get() >= failureThreshold;
+    }
+
+    private boolean allowRequest(){
+        if (!isOpen()){
+            return true;
+        }
+        // half open: once the pause is over a single read finds out whether Redis recovered
+        return System.currentTimeMillis() >= openUntil && trialInFlight.compareAndSet(false, true);
+    }
+
+    private void onSuccess(){
+        consecutiveFailures.set(0);
+        trialInFlight.set(false);
+    }
+
+    private void onFailure(){
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold){
+            openUntil = System.currentTimeMillis() + openMillis;
+        }
+        trialInFlight.set(false);
+    }
+
+    private void bypassed(String reason){
+        meterRegistry.counter("payment.redis.bypass", "reason", reason).increment();
+    }
+
+    private static ThreadFactory daemon(String name){
+        AtomicInteger sequence = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        readExecutor.shutdownNow();
+        fillExecutor.shutdown();
+    }
+}
+
+/**
+ * Bounded, time windowed map used to recognise redeliveries. An entry is remembered for window-ms;
+ * once max-entries are held the oldest go first, so a redelivery storm cannot grow it without bound.
+ * Reads and inserts do not lock, eviction polls the insertion queue from its head.
+ */
+class DedupeWindow<K, V> {
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Stamped<K, V>> order = new ConcurrentLinkedQueue<>();
+    private final long windowNanos;
+    private final int maxEntries;
+    private final LongSupplier clock;
+
+    DedupeWindow(long windowMillis, int maxEntries){
+        this(windowMillis, maxEntries, System::nanoTime);
+    }
+
+    DedupeWindow(long windowMillis, int maxEntries, LongSupplier clock){
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    /**
+     * Remembers the value unless the key is still within its window, in which case the value it was
+     * first seen with is returned and nothing changes.
+     */
+    V putIfAbsent(K key, V value){
+        long now = clock.getAsLong();
+        evict(now);
+        Entry<V> fresh = new Entry<>(value, now + windowNanos);
+        while (true){
+            Entry<V> existing = entries.putIfAbsent(key, fresh);
+            if (existing == null){
+                order.add(new Stamped<>(key, fresh));
+                return null;
+            }
+            if (existing.expiresAt() - now > 0){
+                return existing.value();
+            }
+            entries.remove(key, existing);
+        }
+    }
+
+    V get(K key){
+        Entry<V> entry = entries.get(key);
+        return entry == null || entry.expiresAt() - clock.getAsLong() <= 0 ? null : entry.value();
+    }
+
+    void remove(K key){
+        entries.remove(key);
+    }
+
+    int size(){
+        return entries.size();
+    }
+
+    private void evict(long now){
+        Stamped<K, V> head;
+        while ((head = order.peek()) != null
+                && (head.entry().expiresAt() - now <= 0 || entries.size() >= maxEntries)){
+            Stamped<K, V> oldest = order.poll();
+            if (oldest != null){
+                entries.remove(oldest.key(), oldest.entry());
+            }
+        }
+    }
+
+    private record Entry<V>(V value, long expiresAt) { }
+
+    private record Stamped<K, V>(K key, Entry<V> entry) { }
+}
+
+/**
+ * Pre-authorization responses seen recently, by response id. A redelivered response is dropped
+ * before it reaches the database or a state machine. The pre-authorize module answers a redelivered
+ * request with its first response, same id, so those replays end here as well.
+ */
+@Component
+class PreAuthorizeResponseDedupe {
+    private final DedupeWindow<UUID, Boolean> seen;
+    private final Counter dropped;
+
+    PreAuthorizeResponseDedupe(
+            MeterRegistry meterRegistry,
+            @Value("${app.props.dedupe.window-ms:600000}") long windowMillis,
+            @Value("${app.props.dedupe.max-entries:200000}") int maxEntries){
+
+        this.seen = new DedupeWindow<>(windowMillis, maxEntries);
+        this.dropped = meterRegistry.counter("payment.dedupe.dropped");
+        Gauge.builder("payment.dedupe.entries", seen, DedupeWindow::size).register(meterRegistry);
+    }
+
+    public boolean firstSeen(UUID responseId){
+        if (responseId == null || seen.putIfAbsent(responseId, Boolean.TRUE) == null){
+            return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    public void forget(UUID responseId){
+        if (responseId != null){
+            // a response that failed must be let through when the retry delivers it again
+            seen.remove(responseId);
+        }
+    }
+}
+
+/**
+ * Node-local guard in front of payment lookups. A Bloom filter over every known id and payment
+ * number answers "definitely missing" without touching Redis or the database, and keys that got
+ * past it but were not found are remembered for a short while. Until the startup load finishes, or
+ * if it fails, everything might exist. Payments created on other nodes are learned from their first
+ * state notification, so right after a create another node may answer 404 for a few milliseconds.
+ * Notifications are at most once and other writers send none, so the filter is rebuilt from a keyset
+ * scan every rebuild-ms; adds made while a rebuild runs go to both filters. It is sized by
+ * expected-payments, each of which puts two keys into it.
+ */
+@Component
+@Slf4j
+class PaymentExistenceFilter {
+    private static final double LN2 = Math.log(2);
+
+    private final PaymentRepository paymentRepository;
+    private final long bitCount;
+    private final int hashCount;
+    private final Map<String, Long> missing = new ConcurrentHashMap<>();
+    private final Counter rejectedByFilter;
+    private final Counter rejectedByNegativeCache;
+    private volatile AtomicLongArray bits;
+    private volatile AtomicLongArray rebuilding;
+    private volatile boolean loaded;
+
+    @Value("${app.props.existence-filter.negative-ttl-ms:5000}")
+    private long negativeTtlMillis;
+
+    @Value("${app.props.existence-filter.negative-max-entries:100000}")
+    private int negativeMaxEntries;
+
+    @Value("${app.props.existence-filter.load-page-size:5000}")
+    private int loadPageSize;
+
+    PaymentExistenceFilter(
+            PaymentRepository paymentRepository,
+            MeterRegistry meterRegistry,
+            @Value("${app.props.existence-filter.expected-payments:2000000}") long expectedPayments,
+            @Value("${app.props.existence-filter.false-positive-rate:0.01}") double falsePositiveRate){
+
+        this.paymentRepository = paymentRepository;
+        // the id and the payment number
+        long expectedKeys = 2 * expectedPayments;
+        long optimalBits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (LN2 * LN2));
+        this.bitCount = Math.max(64, (optimalBits + 63) / 64 * 64);
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedKeys * LN2));
+        this.bits = new AtomicLongArray((int) (bitCount / 64));
+        this.rejectedByFilter = meterRegistry.counter("payment.lookup.rejected", "by", "bloom-filter");
+        this.rejectedByNegativeCache = meterRegistry.counter("payment.lookup.rejected", "by", "negative-cache");
+    }
+
+    public void add(UUID id, Integer paymentNumber){
+        put(id.toString());
+        put(paymentNumber.toString());
+    }
+
+    public boolean mightExist(String key){
+        if (!loaded){
+            return true;
+        }
+        Long expiresAt = missing.get(key);
+        if (expiresAt != null){
+            if (expiresAt - System.nanoTime() > 0){
+                rejectedByNegativeCache.increment();
+                return false;
+            }
+            missing.remove(key, expiresAt);
+        }
+        AtomicLongArray current = bits;
+        long hash = hash(key);
+        for (int i = 0; i < hashCount; i++){
+            long bit = index(hash, i);
+            if ((current.get((int) (bit >>> 6)) & (1L << bit)) == 0){
+                rejectedByFilter.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void recordMissing(String key){
+        if (missing.size() >= negativeMaxEntries){
+            long now = System.nanoTime();
+            missing.values().removeIf(expiresAt -> expiresAt - now <= 0);
+            if (missing.size() >= negativeMaxEntries){
+                return;
+            }
+        }
+        missing.put(key, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load(){
+        rebuild();
+    }
+
+    @Scheduled(
+            initialDelayString = "${app.props.existence-filter.rebuild-ms:300000}",
+            fixedDelayString = "${app.props.existence-filter.rebuild-ms:300000}")
+    public void rebuild(){
+        long start = System.nanoTime();
+        long total = 0;
+        AtomicLongArray building = new AtomicLongArray(bits.length());
+        // set before the scan, so a row committed after the scan passed its id still gets here
+        rebuilding = building;
+        try {
+            UUID after = IdRanges.lowerBound(0, 1);
+            while (true){
+                List<Object[]> rows = paymentRepository.findSearchEntriesAfter(after, IdRanges.LAST_ID, PageRequest.of(0, loadPageSize));
+                rows.forEach(row -> {
+                    put(building, row[0].toString());
+                    put(building, row[1].toString());
+                });
+                total += rows.size();
+                if (rows.size() < loadPageSize){
+                    break;
+                }
+                after = (UUID) rows.get(rows.size() - 1)[0];
+            }
+            bits = building;
+            markLoaded();
+            log.info("Payment existence filter built with " + total + " payments in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (RuntimeException ex){
+            log.error("Payment existence filter not rebuilt, " + (loaded ? "keeping the previous one " : "every lookup goes through ")
+                    + ex.getMessage());
+        } finally {
+            rebuilding = null;
+        }
+    }
+
+    void markLoaded(){
+        loaded = true;
+    }
+
+    private void put(String key){
+        missing.remove(key);
+        // rebuilding is read first: once it is cleared the rebuilt filter is already in place
+        AtomicLongArray building = rebuilding;
+        if (building != null){
+            put(building, key);
+        }
+        put(bits, key);
+    }
+
+    private void put(AtomicLongArray bits, String key){
+        long hash = hash(key);
+        for (int i = 0; i < hashCount; i++){
+            long bit = index(hash, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = bits.get(word);
+            } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+        }
+    }
+
+    private long index(long hash, int i){
+        // Kirsch-Mitzenmacher: the k probes are combinations of the two halves of one hash
+        long combined = (hash >>> 32) + i * (hash & 0xffffffffL);
+        return Math.floorMod(combined, bitCount);
+    }
+
+    private static long hash(String key){
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++){
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
+
+/**
+ * Refills the lookup cache at startup, so after a deploy or a Redis flush lookups do not all fall
+ * through to the database until the TTL has cycled. Payments not yet in a terminal state are read by
+ * one keyset paged reader per id range, next to a reader walking back from the newest payment until
+ * recent-budget payments are loaded. Every page goes to Redis in a single pipeline and into the
+ * existence filter. Runs while the application is starting, and readiness only flips to accepting
+ * traffic once the ready listeners return, so instances join the load balancer warm or after
+ * timeout-ms at the latest.
+ */
+@Component
+@Slf4j
+class PaymentCacheWarmer {
+    private static final List<States> IN_FLIGHT = Arrays
+            .stream(States.values())
+            .filter(state -> !LatencyTracer.TERMINAL_STATES.contains(state))
+            .toList();
+
+    private final PaymentRepository paymentRepository;
+    private final PaymentMapper paymentMapper;
+    private final RedisLookupCache redisLookupCache;
+    private final PaymentExistenceFilter existenceFilter;
+    private final Counter warmed;
+    private final boolean enabled;
+    private final int recentBudget;
+    private final int inFlightBudget;
+    private final int pageSize;
+    private final int readers;
+    private final long timeoutMillis;
+    private final Set<UUID> seen = ConcurrentHashMap.newKeySet();
+    private volatile boolean stopped;
+
+    PaymentCacheWarmer(
+            PaymentRepository paymentRepository,
+            PaymentMapper paymentMapper,
+            RedisLookupCache redisLookupCache,
+            PaymentExistenceFilter existenceFilter,
+            MeterRegistry meterRegistry,
+            @Value("${app.props.warmup.enabled:true}") boolean enabled,
+            @Value("${app.props.warmup.recent-budget:10000}") int recentBudget,
+            @Value("${app.props.warmup.in-flight-budget:50000}") int inFlightBudget,
+            @Value("${app.props.warmup.page-size:500}") int pageSize,
+            @Value("${app.props.warmup.readers:4}") int readers,
+            @Value("${app.props.warmup.timeout-ms:30000}") long timeoutMillis){
+
+        this.paymentRepository = paymentRepository;
+        this.paymentMapper = paymentMapper;
+        this.redisLookupCache = redisLookupCache;
+        this.existenceFilter = existenceFilter;
+        this.warmed = meterRegistry.counter("payment.warmup.payments");
+        this.enabled = enabled;
+        this.recentBudget = recentBudget;
+        this.inFlightBudget = inFlightBudget;
+        this.pageSize = pageSize;
+        this.readers = Math.max(1, Math.min(readers, 16));
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp(){
+        if (!enabled){
+            return;
+        }
+        long start = System.nanoTime();
+        stopped = false;
+        redisLookupCache.beginWarmUp();
+        ExecutorService executor = Executors.newFixedThreadPool(readers + 1);
+        try {
+            AtomicInteger inFlightLeft = new AtomicInteger(inFlightBudget);
+            List<CompletableFuture<Void>> loads = new ArrayList<>();
+            for (int range = 0; range < readers; range++){
+                UUID after = IdRanges.lowerBound(range, readers);
+                UUID upTo = IdRanges.upperBound(range, readers);
+                loads.add(CompletableFuture.runAsync(() -> warmInFlight(after, upTo, inFlightLeft), executor));
+            }
+            loads.add(CompletableFuture.runAsync(this::warmRecent, executor));
+            CompletableFuture.allOf(loads.toArray(CompletableFuture[]::new)).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex){
+            log.warn("Cache warm-up stopped after " + timeoutMillis + " ms, the rest fills on demand");
+        } catch (ExecutionException ex){
+            log.warn("Cache warm-up failed " + ex.getCause().getMessage());
+        } catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped = true;
+            executor.shutdownNow();
+            redisLookupCache.endWarmUp();
+        }
+        log.info("Cache warmed with " + seen.size() + " payments in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        seen.clear();
+    }
+
+    void warmInFlight(UUID after, UUID upTo, AtomicInteger left){
+        while (!stopped && left.get() > 0){
+            List<Payment> page = paymentRepository.findInStatesAfter(IN_FLIGHT, after, upTo, PageRequest.of(0, pageSize));
+            left.addAndGet(-load(page));
+            if (page.size() < pageSize){
+                return;
+            }
+            after = page.get(page.size() - 1).getId();
+        }
+    }
+
+    void warmRecent(){
+        int left = recentBudget;
+        if (left <= 0){
+            return;
+        }
+        List<Payment> page = paymentRepository.findAllByOrderByTimestampDescIdDesc(PageRequest.of(0, Math.min(pageSize, left)));
+        while (!stopped && !page.isEmpty()){
+            load(page);
+            left -= page.size();
+            if (left <= 0 || page.size() < pageSize){
+                return;
+            }
+            Payment last = page.get(page.size() - 1);
+            page = paymentRepository.findCreatedBefore(last.getTimestamp(), last.getId(), PageRequest.of(0, Math.min(pageSize, left)));
+        }
+    }
+
+    private int load(List<Payment> page){
+        Map<String, PaymentDto> entries = new HashMap<>();
+        for (Payment payment : page){
+            // in-flight payments also show up among the recent ones
+            if (seen.add(payment.getId())){
+                PaymentDto dto = paymentMapper.entityToDto(payment);
+                entries.put(payment.getId().toString(), dto);
+                entries.put(payment.getPaymentNumber().toString(), dto);
+                existenceFilter.add(payment.getId(), payment.getPaymentNumber());
+            }
+        }
+        if (!stopped){
+            redisLookupCache.warm(entries);
+        }
+        warmed.increment(entries.size() / 2.0);
+        return entries.size() / 2;
+    }
+}
+
+enum RollupResolution {
+    SECOND(1), MINUTE(60);
+
+    final long seconds;
+
+    RollupResolution(long seconds){
+        this.seconds = seconds;
+    }
+}
+
+/**
+ * Payments that entered each state during one bucket, and the sum of their amounts. Buckets start
+ * at absolute epoch boundaries, so points from several nodes with the same start simply add up.
+ */
+@Builder
+record StateRollup(
+        @JsonProperty("bucket_start") Instant bucketStart,
+        @JsonProperty("counts") Map<States, Long> counts,
+        @JsonProperty("amounts") Map<States, BigDecimal> amounts
+) {
+    StateRollup merge(StateRollup other){
+        Map<States, Long> mergedCounts = new EnumMap<>(States.class);
+        Map<States, BigDecimal> mergedAmounts = new EnumMap<>(States.class);
+        mergedCounts.putAll(counts);
+        mergedAmounts.putAll(amounts);
+        other.counts().forEach((state, count) -> mergedCounts.merge(state, count, Long::sum));
+        other.amounts().forEach((state, amount) -> mergedAmounts.merge(state, amount, BigDecimal::add));
+        return new StateRollup(bucketStart, mergedCounts, mergedAmounts);
+    }
+
+    static List<StateRollup> mergeAll(Collection<List<StateRollup>> series){
+        Map<Instant, StateRollup> merged = new TreeMap<>();
+        series.forEach(points -> points.forEach(point -> merged.merge(point.bucketStart(), point, StateRollup::merge)));
+        return new ArrayList<>(merged.values());
+    }
+}
+
+/**
+ * Per-second and per-minute counts and amount sums of payments entering each state, fed by the state
+ * machine listener. Each resolution is a ring of buckets indexed by epoch second or minute; a writer
+ * that finds a stale bucket in its slot swaps in a fresh one with a compare-and-set, so recording
+ * never blocks and old buckets fall out of the retention window by being overwritten.
+ */
+@Component
+class StateRollups {
+    private static final int STATES = States.values().length;
+
+    private final AtomicReferenceArray<RollupBucket> seconds;
+    private final AtomicReferenceArray<RollupBucket> minutes;
+    private final Clock clock;
+
+    @Autowired
+    StateRollups(
+            @Value("${app.props.rollups.second-retention:600}") int secondRetention,
+            @Value("${app.props.rollups.minute-retention:1440}") int minuteRetention){
+        this(secondRetention, minuteRetention, Clock.systemUTC());
+    }
+
+    StateRollups(int secondRetention, int minuteRetention, Clock clock){
+        this.seconds = new AtomicReferenceArray<>(secondRetention);
+        this.minutes = new AtomicReferenceArray<>(minuteRetention);
+        this.clock = clock;
+    }
+
+    public void record(States state, BigDecimal amount){
+        long cents = amount == null ? 0 : amount.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValue();
+        long epochSecond = clock.instant().getEpochSecond();
+        bucket(seconds, epochSecond).add(state, cents);
+        bucket(minutes, epochSecond / RollupResolution.MINUTE.seconds).add(state, cents);
+    }
+
+    public List<StateRollup> series(RollupResolution resolution, int last){
+        AtomicReferenceArray<RollupBucket> ring = resolution == RollupResolution.SECOND ? seconds : minutes;
+        long current = clock.instant().getEpochSecond() / resolution.seconds;
+        long oldest = current - Math.min(last, ring.length()) + 1;
+        List<StateRollup> points = new ArrayList<>();
+        for (long index = oldest; index <= current; index++){
+            RollupBucket bucket = ring.get((int) Math.floorMod(index, (long) ring.length()));
+            if (bucket != null && bucket.index == index){
+                points.add(bucket.snapshot(Instant.ofEpochSecond(index * resolution.seconds)));
+            }
+        }
+        return points;
+    }
+
+    private static RollupBucket bucket(AtomicReferenceArray<RollupBucket> ring, long index){
+        int slot = (int) Math.floorMod(index, (long) ring.length());
+        while (true){
+            RollupBucket bucket = ring.get(slot);
+            if (bucket != null && bucket.index == index){
+                return bucket;
+            }
+            if (bucket != null && bucket.index > index){
+                // a late writer from a bucket that is already gone, count it in the newer one
+                return bucket;
+            }
+            RollupBucket fresh = new RollupBucket(index);
+            if (ring.compareAndSet(slot, bucket, fresh)){
+                return fresh;
+            }
+        }
+    }
+
+    private static final class RollupBucket {
+        private final long index;
+        private final AtomicLongArray counts = new AtomicLongArray(STATES);
+        private final AtomicLongArray cents = new AtomicLongArray(STATES);
+
+        private RollupBucket(long index){
+            this.index = index;
+        }
+
+        private void add(States state, long amountCents){
+            counts.incrementAndGet(state.ordinal());
+            cents.addAndGet(state.ordinal(), amountCents);
+        }
+
+        private StateRollup snapshot(Instant start){
+            Map<States, Long> stateCounts = new EnumMap<>(States.class);
+            Map<States, BigDecimal> stateAmounts = new EnumMap<>(States.class);
+            for (States state : States.values()){
+                long count = counts.get(state.ordinal());
+                if (count > 0){
+                    stateCounts.put(state, count);
+                    stateAmounts.put(state, BigDecimal.valueOf(cents.get(state.ordinal()), 2));
+                }
+            }
+            return new StateRollup(start, stateCounts, stateAmounts);
+        }
+    }
+}
+
+enum JournalRecordType {
+    CREATE(1), CREATE_ASYNC(2), PRE_AUTH_REQUEST(3), PRE_AUTH_RESPONSE(4);
+
+    final byte code;
+
+    JournalRecordType(int code){
+        this.code = (byte) code;
+    }
+
+    static JournalRecordType of(byte code){
+        for (JournalRecordType type : values()){
+            if (type.code == code){
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown journal record type " + code);
+    }
+}
+
+record JournalRecord(
+        JournalRecordType type,
+        long offsetNanos,
+        byte[] payload
+) { }
+
+/**
+ * Capture of inbound traffic into an append-only memory-mapped file, enabled with
+ * app.props.journal.enabled. A header holds a magic number and the wall clock start; each record is
+ * its length, type, nanoseconds since the journal was opened and the JSON payload as it went over
+ * the wire. Writers reserve their range with one atomic add and write the length last, so a reader
+ * stops at the first empty record. Once the file is full further records are dropped and counted.
+ * The pre-authorize module writes the same format.
+ */
+@Component
+@Slf4j
+class TrafficJournal {
+    static final int MAGIC = 0x50594a4c;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 4 + 1 + 8;
+
+    private final ObjectMapper objectMapper;
+    private final Counter dropped;
+    private final AtomicLong position = new AtomicLong(HEADER_SIZE);
+
+    @Value("${app.props.journal.enabled:false}")
+    private boolean enabled;
+    @Value("${app.props.journal.dir:journal}")
+    private String dir;
+    @Value("${app.props.journal.size-mb:512}")
+    private int sizeMb;
+    @Value("${spring.application.name:payment_core}")
+    private String applicationName;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long startNanos;
+
+    TrafficJournal(ObjectMapper objectMapper, MeterRegistry meterRegistry){
+        this.objectMapper = objectMapper;
+        this.dropped = meterRegistry.counter("app.journal.dropped");
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled){
+            return;
+        }
+        Path file = Path.of(dir, applicationName + "-" + System.currentTimeMillis() + ".journal");
+        Files.createDirectories(file.getParent());
+        long size = Math.min(Integer.MAX_VALUE, (long) sizeMb << 20);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(0, MAGIC);
+        buffer.putLong(4, System.currentTimeMillis());
+        startNanos = System.nanoTime();
+        log.info("Capturing traffic into " + file.toAbsolutePath());
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    public void appendJson(JournalRecordType type, Object payload){
+        if (!enabled){
+            return;
+        }
+        try {
+            append(type, objectMapper.writeValueAsBytes(payload));
+        } catch (JsonProcessingException ex){
+            dropped.increment();
+        }
+    }
+
+    public void append(JournalRecordType type, byte[] payload){
+        if (!enabled){
+            return;
+        }
+        long offsetNanos = System.nanoTime() - startNanos;
+        int length = RECORD_HEADER_SIZE + payload.length;
+        long start = position.getAndAdd(length);
+        if (start + length + 4 > buffer.capacity()){
+            dropped.increment();
+            return;
+        }
+        int at = (int) start;
+        buffer.put(at + 4, type.code);
+        buffer.putLong(at + 5, offsetNanos);
+        buffer.put(at + RECORD_HEADER_SIZE, payload);
+        buffer.putInt(at, length);
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (channel == null){
+            return;
+        }
+        buffer.force();
+        channel.close();
+    }
+
+    static List<JournalRecord> read(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)){
+            MappedByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (data.getInt(0) != MAGIC){
+                throw new IOException(file + " is not a traffic journal");
+            }
+            List<JournalRecord> records = new ArrayList<>();
+            int at = HEADER_SIZE;
+            while (at + 4 <= data.capacity()){
+                int length = data.getInt(at);
+                if (length == 0){
+                    break;
+                }
+                byte[] payload = new byte[length - RECORD_HEADER_SIZE];
+                data.get(at + RECORD_HEADER_SIZE, payload);
+                records.add(new JournalRecord(JournalRecordType.of(data.get(at + 4)), data.getLong(at + 5), payload));
+                at += length;
+            }
+            // writers reserve in order but may finish out of order
+            records.sort(Comparator.comparingLong(JournalRecord::offsetNanos));
+            return records;
+        }
+    }
+}
+
+@Builder
+record LatencyTrace(
+        @JsonProperty("payment_number") Integer paymentNumber,
+        @JsonProperty("outcome") States outcome,
+        @JsonProperty("started_at") Instant startedAt,
+        @JsonProperty("total_ms") double totalMillis,
+        @JsonProperty("hops_ms") Map<String, Double> hopMillis
+) { }
+
+/**
+ * Follows a payment from creation to its terminal state. Hops are recorded into the
+ * payment.trace.hop histogram as they happen and kept on the open trace; the terminal state records
+ * payment.trace.total and moves the trace into a ring buffer from which the slowest are listed.
+ */
+@Component
+@Slf4j
+class LatencyTracer {
+    static final Set<States> TERMINAL_STATES = EnumSet.of(States.PRE_AUTH_ERROR, States.AUTH_ERROR, States.AUTH_AUTHORIZED);
+
+    private final MeterRegistry meterRegistry;
+    private final Map<Integer, OpenTrace> open = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<LatencyTrace> finished;
+    private final AtomicLong cursor = new AtomicLong();
+    private final Counter abandoned;
+
+    @Value("${app.props.trace.open-timeout-ms:300000}")
+    private long openTimeoutMillis;
+
+    LatencyTracer(
+            MeterRegistry meterRegistry,
+            @Value("${app.props.trace.ring-size:1024}") int ringSize){
+
+        this.meterRegistry = meterRegistry;
+        this.finished = new AtomicReferenceArray<>(ringSize);
+        this.abandoned = meterRegistry.counter("payment.trace.abandoned");
+    }
+
+    public void begin(Integer paymentNumber){
+        open.put(paymentNumber, new OpenTrace(System.nanoTime(), Instant.now()));
+    }
+
+    public void hop(Integer paymentNumber, String hop, long nanos){
+        long clamped = Math.max(0, nanos);
+        Timer.builder("payment.trace.hop")
+                .tag("hop", hop)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(clamped, TimeUnit.NANOSECONDS);
+        OpenTrace trace = paymentNumber == null ? null : open.get(paymentNumber);
+        if (trace != null){
+            trace.hops.put(hop, clamped);
+        }
+    }
+
+    /**
+     * Records the hops stamped on a pre-authorization response and returns the payment it belongs to.
+     */
+    public Integer arrived(MessageProperties properties, long arrivedAt){
+        Long paymentNumber = HopTrace.longHeader(properties, HopTrace.PAYMENT_NUMBER);
+        Integer key = paymentNumber == null ? null : paymentNumber.intValue();
+        Long publishedAt = HopTrace.longHeader(properties, HopTrace.PUBLISHED_AT);
+        Long receivedAt = HopTrace.longHeader(properties, HopTrace.RECEIVED_AT);
+        Long handlerNanos = HopTrace.longHeader(properties, HopTrace.HANDLER_NANOS);
+        Long repliedAt = HopTrace.longHeader(properties, HopTrace.REPLIED_AT);
+
+        if (publishedAt != null && receivedAt != null){
+            hop(key, "request_queue", TimeUnit.MILLISECONDS.toNanos(receivedAt - publishedAt));
+        }
+        if (handlerNanos != null){
+            hop(key, "handler", handlerNanos);
+        }
+        if (repliedAt != null){
+            hop(key, "response_queue", TimeUnit.MILLISECONDS.toNanos(arrivedAt - repliedAt));
+        }
+        return key;
+    }
+
+    public void hopSince(Integer paymentNumber, String hop){
+        OpenTrace trace = paymentNumber == null ? null : open.get(paymentNumber);
+        if (trace != null){
+            hop(paymentNumber, hop, System.nanoTime() - trace.startNanos);
+        }
+    }
+
+    public void finish(Integer paymentNumber, States outcome){
+        OpenTrace trace = paymentNumber == null ? null : open.remove(paymentNumber);
+        if (trace == null){
+            // began on another node or already swept
+            return;
+        }
+        long total = System.nanoTime() - trace.startNanos;
+        Timer.builder("payment.trace.total")
+                .tag("outcome", outcome.name())
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(total, TimeUnit.NANOSECONDS);
+
+        Map<String, Double> hops = new LinkedHashMap<>();
+        trace.hops.forEach((hop, nanos) -> hops.put(hop, nanos / 1e6));
+        int slot = (int) (cursor.getAndIncrement() % finished.length());
+        finished.set(slot, LatencyTrace
+                .builder()
+                .paymentNumber(paymentNumber)
+                .outcome(outcome)
+                .startedAt(trace.startedAt)
+                .totalMillis(total / 1e6)
+                .hopMillis(hops)
+                .build());
+    }
+
+    public List<LatencyTrace> slowest(int limit){
+        List<LatencyTrace> traces = new ArrayList<>(finished.length());
+        for (int i = 0; i < finished.length(); i++){
+            LatencyTrace trace = finished.get(i);
+            if (trace != null){
+                traces.add(trace);
+            }
+        }
+        traces.sort(Comparator.comparingDouble(LatencyTrace::totalMillis).reversed());
+        return traces.subList(0, Math.min(limit, traces.size()));
+    }
+
+    @Scheduled(fixedDelayString = "${app.props.trace.sweep-interval-ms:60000}")
+    public void sweep(){
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(openTimeoutMillis);
+        long now = System.nanoTime();
+        open.entrySet().removeIf(entry -> {
+            boolean expired = now - entry.getValue().startNanos > timeoutNanos;
+            if (expired){
+                abandoned.increment();
+            }
+            return expired;
+        });
+    }
+
+    private static final class OpenTrace {
+        private final long startNanos;
+        private final Instant startedAt;
+        private final Map<String, Long> hops = new ConcurrentHashMap<>();
+
+        private OpenTrace(long startNanos, Instant startedAt){
+            this.startNanos = startNanos;
+            this.startedAt = startedAt;
+        }
+    }
+}
+
+/**
+ * Response listener that turns the timing headers stamped by both services into hops before and
+ * after handing the message to the payment service.
+ */
+class TracingListenerAdapter extends MessageListenerAdapter {
+    private final LatencyTracer latencyTracer;
+    private final TrafficJournal trafficJournal;
+
+    TracingListenerAdapter(LatencyTracer latencyTracer, TrafficJournal trafficJournal){
+        this.latencyTracer = latencyTracer;
+        this.trafficJournal = trafficJournal;
+    }
+
+    @Override
+    public void onMessage(org.springframework.amqp.core.Message message, Channel channel) throws Exception {
+        long start = System.nanoTime();
+        trafficJournal.append(JournalRecordType.PRE_AUTH_RESPONSE, message.getBody());
+        Integer key = latencyTracer.arrived(message.getMessageProperties(), System.currentTimeMillis());
+        try {
+            super.onMessage(message, channel);
+        } finally {
+            latencyTracer.hop(key, "process", System.nanoTime() - start);
+        }
+    }
+}
+
+class AppUtils {
+    public static Integer generatePaymentNumber(){
+        LocalDateTime now = LocalDateTime.now();
+        String formattedDate = now.format(DateTimeFormatter.ofPattern("MMddHHmm"));
+        int randomNumber = new Random().nextInt(0, 9);
+        String generatedStr = formattedDate + randomNumber;
+        return Integer.parseInt(generatedStr);
+    }
+
+}
+
+@RestController
+@RequestMapping("/api/v1/payment")
+@RequiredArgsConstructor
+class PaymentController {
+    private final PaymentService paymentService;
+    private final RedisLookupCache redisLookupCache;
+    private final PaymentNotificationHub notificationHub;
+    private final LatencyTracer latencyTracer;
+    private final PaymentExistenceFilter existenceFilter;
+    private final StateRollups stateRollups;
+    private final PayerCacheGeneration payerCacheGeneration;
+    private final TrafficJournal trafficJournal;
+    private final PayerRateLimiter payerRateLimiter;
+    @GetMapping(path = "/{id}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeToPayment(@PathVariable UUID id){
+        // subscribe before reading the snapshot so no transition falls in between
+        SseEmitter emitter = notificationHub.subscribe(PaymentNotificationHub.paymentTopic(id));
+        notificationHub.sendSnapshot(emitter, paymentService.getPaymentById(id));
+        return emitter;
+    }
+    @GetMapping("/{id}/history")
+    public ResponseEntity<List<PaymentTransitionDto>> getPaymentHistory(@PathVariable UUID id){
+        if (!existenceFilter.mightExist(id.toString())){
+            throw new ResourceNotFoundException(id.toString());
+        }
+        return new ResponseEntity<>(paymentService.getPaymentHistory(id), HttpStatus.OK);
+    }
+    @GetMapping(path = "/payer/{payer_name}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeToPayer(@PathVariable("payer_name") String payerName){
+        return notificationHub.subscribe(PaymentNotificationHub.payerTopic(payerName));
+    }
+    @GetMapping("/find/id/{id}")
+    public ResponseEntity<PaymentDto> getById(
+            @PathVariable UUID id,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch){
+        return conditional(lookup(id.toString(), () -> paymentService.getPaymentById(id)), ifNoneMatch);
+    }
+    @GetMapping("/find")
+    public ResponseEntity<PaymentDto> getByPaymentNumber(
+            @RequestParam("number") Integer paymentNumber,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch){
+        return conditional(
+                lookup(paymentNumber.toString(), () -> paymentService.getPaymentByPaymentNumber(paymentNumber)),
+                ifNoneMatch);
+    }
+    @GetMapping
+    public ResponseEntity<Set<PaymentDto>> getAllPayments(Pageable pageable){
+        return new ResponseEntity<>(
+                paymentService
+                        .getAllPayments(
+                                PageRequest.of(pageable.getPageNumber(),
+                                pageable.getPageSize())), HttpStatus.OK);
+    }
+    @GetMapping("/find/name/{payer_name}")
+    public ResponseEntity<Set<PaymentDto>> getAllByPayerName(
+            @PathVariable("payer_name") String payerName,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            Pageable pageable){
+        // every change to the payer's payments bumps the generation, so it identifies the page content
+        String etag = "W/\"" + payerCacheGeneration.current(payerName)
+                + "." + pageable.getPageNumber() + "." + pageable.getPageSize() + "\"";
+        if (etagMatches(ifNoneMatch, etag)){
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+        return ResponseEntity.ok().eTag(etag).body(
+                paymentService
+                        .getAllPaymentByPayer(
+                                PageRequest.of(pageable.getPageNumber(),
+                                pageable.getPageSize()), payerName));
+    }
+    @GetMapping("/search")
+    public ResponseEntity<List<PayerSearchHit>> searchByPayer(
+            @RequestParam("payer") String payerPrefix,
+            Pageable pageable){
+        return new ResponseEntity<>(
+                paymentService.searchByPayer(payerPrefix, pageable), HttpStatus.OK);
+    }
+    @GetMapping("/rollups")
+    public ResponseEntity<List<StateRollup>> getStateRollups(
+            @RequestParam(value = "resolution", defaultValue = "MINUTE") RollupResolution resolution,
+            @RequestParam(value = "last", defaultValue = "60") int last){
+        return new ResponseEntity<>(stateRollups.series(resolution, last), HttpStatus.OK);
+    }
+    @GetMapping("/traces/slowest")
+    public ResponseEntity<List<LatencyTrace>> getSlowestTraces(
+            @RequestParam(value = "limit", defaultValue = "20") int limit){
+        return new ResponseEntity<>(latencyTracer.slowest(limit), HttpStatus.OK);
+    }
+    @GetMapping("/async/{id}")
+    public ResponseEntity<AsyncCreateStatus> getAsyncCreateStatus(@PathVariable UUID id){
+        return new ResponseEntity<>(paymentService.getAsyncCreateStatus(id), HttpStatus.OK);
+    }
+    @PostMapping
+    public ResponseEntity<Void> createPayment(
+            @RequestBody @Valid PaymentDto paymentDto,
+            @RequestHeader(value = "Prefer", required = false) String prefer,
+            UriComponentsBuilder ucb){
+
+        // throttled payers are turned away before anything is stored or published
+        payerRateLimiter.acquire(paymentDto.payerName());
+        if (prefer != null && prefer.contains("respond-async")){
+            trafficJournal.appendJson(JournalRecordType.CREATE_ASYNC, paymentDto);
+            UUID acceptedId = paymentService.createPaymentAsync(paymentDto);
+            URI statusPath = ucb
+                    .path("/api/v1/payment/async/{id}")
+                    .buildAndExpand(acceptedId)
+                    .toUri();
+            return ResponseEntity.accepted().location(statusPath).build();
+        }
+
+        trafficJournal.appendJson(JournalRecordType.CREATE, paymentDto);
+        UUID persistedId = paymentService.createPayment(paymentDto);
+
+        URI resourcePath = ucb
+                .path("/api/v1/payment/find/id/{id}")
+                .buildAndExpand(persistedId)
+                .toUri();
+
+        return ResponseEntity.created(resourcePath).build();
+    }
+
+    private ResponseEntity<PaymentDto> conditional(PaymentDto dto, String ifNoneMatch){
+        String etag = "\"" + dto.id() + "." + dto.version() + "\"";
+        if (etagMatches(ifNoneMatch, etag)){
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+        return ResponseEntity.ok().eTag(etag).body(dto);
+    }
+    static boolean etagMatches(String ifNoneMatch, String etag){
+        if (ifNoneMatch == null){
+            return false;
+        }
+        // If-None-Match uses the weak comparison
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : ifNoneMatch.split(",")){
+            String trimmed = candidate.trim();
+            if (trimmed.equals("*") || (trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed).equals(opaque)){
+                return true;
+            }
+        }
+        return false;
+    }
+    private PaymentDto lookup(String key, Supplier<PaymentDto> fromDb){
+        if (!existenceFilter.mightExist(key)){
+            throw new ResourceNotFoundException(key);
+        }
+        try {
+            return redisLookupCache.lookup(key, fromDb);
+        } catch (ResourceNotFoundException ex){
+            existenceFilter.recordMissing(key);
+            throw ex;
+        }
+    }
+}
+
+/**
+ * Binary RPC contract for internal callers, served next to the JSON API under /rpc/v1/payment with
+ * content type application/x-payment-rpc, over HTTP/2 when the client speaks it. Every call and every
+ * result is one frame, [byte code][int length][body]:
+ * <pre>
+ *   op             call body                                   result body
+ *   CREATE         amount, payer name (modified UTF-8)          id
+ *   GET_BY_ID      id                                          payment
+ *   GET_BY_NUMBER  payment number (int)                        payment
+ *   BULK_GET       count (int), ids                            count (int), payments found
+ * </pre>
+ * An id is two longs, an amount is its zigzag varint scale, a varint length and the unscaled two's
+ * complement bytes, and a payment is the record layout of CompactPaymentRedisSerializer. A result whose status
+ * is not OK carries a UTF-8 message. The stream call reads frames until the request body ends and
+ * writes every result as soon as it is done, so batches of creates share one stream and streams
+ * share one connection.
+ */
+final class PaymentRpc {
+    static final String MEDIA_TYPE = "application/x-payment-rpc";
+    static final byte CREATE = 1;
+    static final byte GET_BY_ID = 2;
+    static final byte GET_BY_NUMBER = 3;
+    static final byte BULK_GET = 4;
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte INVALID = 2;
+    static final byte THROTTLED = 3;
+    static final byte FAILED = 4;
+    static final int MAX_FRAME_BYTES = 1 << 20;
+    static final int MAX_BULK_IDS = 1000;
+    // same rule as the payer name of PaymentDto, checked by hand instead of by Bean Validation
+    static final java.util.regex.Pattern PAYER_NAME = java.util.regex.Pattern.compile("^[a-zA-ZÀ-ÖØ-öø-ÿ\\s]+$");
+
+    private PaymentRpc(){ }
+
+    record Frame(byte code, byte[] body) { }
+
+    interface BodyWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    static Frame read(DataInputStream in) throws IOException {
+        int code = in.read();
+        if (code < 0){
+            return null;
+        }
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES){
+            throw new IOException("Frame of " + length + " bytes");
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return new Frame((byte) code, body);
+    }
+
+    static void write(DataOutputStream out, Frame frame) throws IOException {
+        out.writeByte(frame.code());
+        out.writeInt(frame.body().length);
+        out.write(frame.body());
+    }
+
+    static Frame frame(byte code, BodyWriter writer) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        writer.write(new DataOutputStream(body));
+        return new Frame(code, body.toByteArray());
+    }
+
+    static Frame error(byte status, String message){
+        return new Frame(status, String.valueOf(message).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void writeId(DataOutputStream out, UUID id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    static UUID readId(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    static void writeAmount(DataOutputStream out, BigDecimal amount) throws IOException {
+        CompactPaymentRedisSerializer.writeAmount(out, amount);
+    }
+
+    static BigDecimal readAmount(DataInputStream in) throws IOException {
+        return CompactPaymentRedisSerializer.readAmount(in);
+    }
+}
+
+@RestController
+@RequestMapping("/rpc/v1/payment")
+@RequiredArgsConstructor
+@Slf4j
+class PaymentRpcController {
+    private final PaymentService paymentService;
+    private final PaymentExistenceFilter existenceFilter;
+    private final PayerRateLimiter payerRateLimiter;
+
+    @PostMapping(consumes = PaymentRpc.MEDIA_TYPE, produces = PaymentRpc.MEDIA_TYPE)
+    public byte[] call(InputStream body) throws IOException {
+        PaymentRpc.Frame call = PaymentRpc.read(new DataInputStream(body));
+        PaymentRpc.Frame result = call == null ? PaymentRpc.error(PaymentRpc.INVALID, "Empty call") : handle(call);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(result.body().length + 5);
+        PaymentRpc.write(new DataOutputStream(out), result);
+        return out.toByteArray();
+    }
+
+    @PostMapping(path = "/stream", consumes = PaymentRpc.MEDIA_TYPE, produces = PaymentRpc.MEDIA_TYPE)
+    public StreamingResponseBody stream(InputStream body){
+        return responseBody -> {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(body));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(responseBody));
+            PaymentRpc.Frame call;
+            while ((call = PaymentRpc.read(in)) != null){
+                PaymentRpc.write(out, handle(call));
+                // flushed per result, the caller can pipeline without waiting for the whole batch
+                out.flush();
+            }
+        };
+    }
+
+    PaymentRpc.Frame handle(PaymentRpc.Frame call){
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(call.body()));
+            return switch (call.code()){
+                case PaymentRpc.CREATE -> create(PaymentRpc.readAmount(in), in.readUTF());
+                case PaymentRpc.GET_BY_ID -> payment(getById(PaymentRpc.readId(in)));
+                case PaymentRpc.GET_BY_NUMBER -> payment(getByNumber(in.readInt()));
+                case PaymentRpc.BULK_GET -> bulkGet(in);
+                default -> PaymentRpc.error(PaymentRpc.INVALID, "Unknown operation " + call.code());
+            };
+        } catch (ResourceNotFoundException ex){
+            return PaymentRpc.error(PaymentRpc.NOT_FOUND, ex.getMessage());
+        } catch (PayerThrottledException | AdmissionRejectedException ex){
+            return PaymentRpc.error(PaymentRpc.THROTTLED, ex.getMessage());
+        } catch (IOException ex){
+            return PaymentRpc.error(PaymentRpc.INVALID, "Malformed call " + ex.getMessage());
+        } catch (RuntimeException ex){
+            log.error("Rpc call " + call.code() + " failed " + ex.getMessage());
+            return PaymentRpc.error(PaymentRpc.FAILED, ex.getMessage());
+        }
+    }
+
+    private PaymentRpc.Frame create(BigDecimal amount, String payerName) throws IOException {
+        if (amount.signum() <= 0 || payerName.isBlank() || !PaymentRpc.PAYER_NAME.matcher(payerName).matches()){
+            return PaymentRpc.error(PaymentRpc.INVALID, "Amount must be more than zero and payer name contain only letters");
+        }
+        payerRateLimiter.acquire(payerName);
+        UUID id = paymentService.createPayment(PaymentDto.builder().amount(amount).payerName(payerName).build());
+        return PaymentRpc.frame(PaymentRpc.OK, out -> PaymentRpc.writeId(out, id));
+    }
+
+    private PaymentDto getById(UUID id){
+        return lookup(id.toString(), () -> paymentService.getPaymentById(id));
+    }
+
+    private PaymentDto getByNumber(int paymentNumber){
+        return lookup(String.valueOf(paymentNumber), () -> paymentService.getPaymentByPaymentNumber(paymentNumber));
+    }
+
+    private PaymentDto lookup(String key, Supplier<PaymentDto> fromService){
+        // the same guard as the JSON lookups, misses are remembered for both
+        if (!existenceFilter.mightExist(key)){
+            throw new ResourceNotFoundException(key);
+        }
+        try {
+            return fromService.get();
+        } catch (ResourceNotFoundException ex){
+            existenceFilter.recordMissing(key);
+            throw ex;
+        }
+    }
+
+    private PaymentRpc.Frame bulkGet(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > PaymentRpc.MAX_BULK_IDS){
+            return PaymentRpc.error(PaymentRpc.INVALID, "Bulk get takes up to " + PaymentRpc.MAX_BULK_IDS + " ids");
+        }
+        List<UUID> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++){
+            UUID id = PaymentRpc.readId(in);
+            if (existenceFilter.mightExist(id.toString())){
+                ids.add(id);
+            }
+        }
+        List<PaymentDto> found = ids.isEmpty() ? List.of() : paymentService.getPaymentsByIds(ids);
+        return PaymentRpc.frame(PaymentRpc.OK, out -> {
+            out.writeInt(found.size());
+            for (PaymentDto dto : found){
+                CompactPaymentRedisSerializer.writePayment(out, dto);
+            }
+        });
+    }
+
+    private static PaymentRpc.Frame payment(PaymentDto dto) throws IOException {
+        return PaymentRpc.frame(PaymentRpc.OK, out -> CompactPaymentRedisSerializer.writePayment(out, dto));
+    }
+}
+
+/**
+ * Records the time from JVM start to the first successful payment API response,
+ * the figure that matters when a new instance joins during a traffic spike.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+class FirstResponseTimer extends OncePerRequestFilter {
+    private final MeterRegistry meterRegistry;
+    private final AtomicBoolean recorded = new AtomicBoolean();
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return recorded.get() || !request.getRequestURI().startsWith("/api/v1/payment");
+    }
+
+    @Override
+    protected void doFilterInternal(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            FilterChain filterChain) throws ServletException, IOException {
+
+        filterChain.doFilter(request, response);
+        if (response.getStatus() < 200 || response.getStatus() >= 300 || !recorded.compareAndSet(false, true)){
+            return;
+        }
+        long elapsed = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        Gauge.builder("payment.startup.first.response", () -> elapsed)
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        log.info("First successful payment response " + elapsed + " ms after JVM start");
+    }
+}
+
+@Builder
+record PaymentStateNotification(
+        @JsonProperty("id") UUID id,
+        @JsonProperty("payment_number") Integer paymentNumber,
+        @JsonProperty("payer_name") String payerName,
+        @JsonProperty("from") States from,
+        @JsonProperty("to") States to,
+        Instant timestamp
+) { }
+
+/**
+ * Fan-out of payment state changes to Server-Sent Events subscribers, per payment and per payer.
+ * Transitions are published on a Redis channel and every node delivers them to its own subscribers,
+ * so a client may listen on any node. Idle subscribers are parked async requests, no thread each.
+ * Sends run on a few single-threaded senders picked per emitter, so a slow client never blocks the
+ * Redis listener and still sees its events in order; one that falls send-queue events behind is
+ * disconnected and starts again from a snapshot when it reconnects.
+ */
+@Component
+@Slf4j
+class PaymentNotificationHub {
+    static final String CHANNEL = "payment-state";
+    private static final Set<States> TERMINAL_STATES =
+            EnumSet.of(States.PRE_AUTH_ERROR, States.AUTH_ERROR, States.AUTH_AUTHORIZED);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ObjectMapper objectMapper;
+    private final AdmissionController admissionController;
+    private final PaymentExistenceFilter existenceFilter;
+    private final long timeoutMillis;
+    private final Map<String, Set<SseEmitter>> subscribers = new ConcurrentHashMap<>();
+    private final ExecutorService[] senders;
+
+    PaymentNotificationHub(
+            StringRedisTemplate stringRedisTemplate,
+            ObjectMapper objectMapper,
+            AdmissionController admissionController,
+            PaymentExistenceFilter existenceFilter,
+            MeterRegistry meterRegistry,
+            @Value("${app.props.notifications.timeout-ms:300000}") long timeoutMillis,
+            @Value("${app.props.notifications.send-threads:4}") int sendThreads,
+            @Value("${app.props.notifications.send-queue:1000}") int sendQueue){
+
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.objectMapper = objectMapper;
+        this.admissionController = admissionController;
+        this.existenceFilter = existenceFilter;
+        this.timeoutMillis = timeoutMillis;
+        this.senders = new ExecutorService[sendThreads];
+        for (int i = 0; i < sendThreads; i++){
+            String name = "payment-sse-" + i;
+            senders[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(sendQueue), runnable -> new Thread(runnable, name));
+        }
+        Gauge.builder("payment.notifications.topics", subscribers, Map::size).register(meterRegistry);
+    }
+
+    static String paymentTopic(UUID id){
+        return "payment:" + id;
+    }
+
+    static String payerTopic(String payerName){
+        return "payer:" + payerName;
+    }
+
+    public SseEmitter subscribe(String topic){
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        subscribers.compute(topic, (key, emitters) -> {
+            Set<SseEmitter> current = emitters == null ? ConcurrentHashMap.newKeySet() : emitters;
+            current.add(emitter);
+            return current;
+        });
+        Runnable unsubscribe = () -> subscribers.computeIfPresent(topic, (key, emitters) -> {
+            emitters.remove(emitter);
+            return emitters.isEmpty() ? null : emitters;
+        });
+        emitter.onCompletion(unsubscribe);
+        emitter.onTimeout(unsubscribe);
+        emitter.onError(ex -> unsubscribe.run());
+        return emitter;
+    }
+
+    public void sendSnapshot(SseEmitter emitter, PaymentDto current){
+        PaymentStateNotification snapshot = PaymentStateNotification
+                .builder()
+                .id(current.id())
+                .paymentNumber(current.paymentNumber())
+                .payerName(current.payerName())
+                .to(current.state())
+                .timestamp(Instant.now())
+                .build();
+        if (send(emitter, snapshot) && TERMINAL_STATES.contains(current.state())){
+            emitter.complete();
+        }
+    }
+
+    public void publish(PaymentStateNotification notification){
+        try {
+            stringRedisTemplate.convertAndSend(CHANNEL, objectMapper.writeValueAsString(notification));
+        } catch (Exception ex){
+            log.warn("State change not published on Redis, delivering locally only " + ex.getMessage());
+            dispatch(notification);
+        }
+    }
+
+    public void onChannelMessage(byte[] body){
+        try {
+            PaymentStateNotification notification = objectMapper.readValue(body, PaymentStateNotification.class);
+            if (notification.from() == States.NEW && notification.paymentNumber() != null){
+                // the first transition is how nodes learn about payments created elsewhere
+                existenceFilter.add(notification.id(), notification.paymentNumber());
+            }
+            if (notification.from() == States.PRE_AUTH){
+                // with sharding the response may be handled by another node than the one that admitted it
+                admissionController.complete(notification.paymentNumber());
+            }
+            dispatch(notification);
+        } catch (IOException ex){
+            log.warn("Discarding unreadable state notification " + ex.getMessage());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${app.props.notifications.heartbeat-ms:30000}")
+    public void heartbeat(){
+        subscribers.values().forEach(emitters -> emitters.forEach(emitter -> sendLater(emitter, () -> {
+            try {
+                emitter.send(SseEmitter.event().comment("keep-alive"));
+            } catch (IOException | IllegalStateException ex){
+                emitter.completeWithError(ex);
+            }
+        })));
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        Arrays.stream(senders).forEach(ExecutorService::shutdownNow);
+    }
+
+    private void dispatch(PaymentStateNotification notification){
+        boolean terminal = TERMINAL_STATES.contains(notification.to());
+        Set<SseEmitter> paymentEmitters = subscribers.get(paymentTopic(notification.id()));
+        if (paymentEmitters != null){
+            paymentEmitters.forEach(emitter -> sendLater(emitter, () -> {
+                if (send(emitter, notification) && terminal){
+                    emitter.complete();
+                }
+            }));
+        }
+        if (notification.payerName() != null){
+            Set<SseEmitter> payerEmitters = subscribers.get(payerTopic(notification.payerName()));
+            if (payerEmitters != null){
+                payerEmitters.forEach(emitter -> sendLater(emitter, () -> send(emitter, notification)));
+            }
+        }
+    }
+
+    private void sendLater(SseEmitter emitter, Runnable send){
+        ExecutorService sender = senders[Math.floorMod(System.identityHashCode(emitter), senders.length)];
+        try {
+            sender.execute(send);
+        } catch (RejectedExecutionException ex){
+            emitter.completeWithError(ex);
+        }
+    }
+
+    private boolean send(SseEmitter emitter, PaymentStateNotification notification){
+        try {
+            emitter.send(SseEmitter.event().name("state").data(notification, MediaType.APPLICATION_JSON));
+            return true;
+        } catch (IOException | IllegalStateException ex){
+            emitter.completeWithError(ex);
+            return false;
+        }
+    }
+}
+
+@ControllerAdvice
+@Slf4j
+class GlobalExceptionHandler{
+    @ExceptionHandler(Exception.class)
+    public ResponseEntity<ErrorStdMessage> handleGenericException(Exception ex, HttpServletRequest hsr){
+        log.error("Error message " + ex.getMessage() + " Class " + ex.getClass());
+        return ResponseEntity.internalServerError().body(getMessageErr(ex, hsr, HttpStatus.INTERNAL_SERVER_ERROR.value()));
+    }
+
+    @ExceptionHandler(ResourceNotFoundException.class)
+    public ResponseEntity<Void> handleResourceNotFound(ResourceNotFoundException ex){
+        log.debug("Not successfully query from client " + ex.getMessage()); //intern
+        return ResponseEntity.notFound().build();
+    }
+    @ExceptionHandler(AdmissionRejectedException.class)
+    public ResponseEntity<Void> handleAdmissionRejected(AdmissionRejectedException ex){
+        return ResponseEntity
+                .status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                .build();
+    }
+    @ExceptionHandler(PayerThrottledException.class)
+    public ResponseEntity<Void> handlePayerThrottled(PayerThrottledException ex){
+        return ResponseEntity
+                .status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                .build();
+    }
+    @ExceptionHandler(MethodArgumentNotValidException.class)
+    public ResponseEntity<ErrorStdMessage> handleResourceNotFound(MethodArgumentNotValidException ex, HttpServletRequest hsr){
+        return ResponseEntity.unprocessableEntity().body(getMessageErr(ex, hsr, HttpStatus.UNPROCESSABLE_ENTITY.value()));
+    }
+
+    private ErrorStdMessage getMessageErr(Exception ex, HttpServletRequest hsr, Integer code){
+
+        return ErrorStdMessage
+                .builder()
+                .message(ex.getMessage())
+                .timestamp(LocalDateTime.now())
+                .statusCode(code)
+                .path(hsr.getRequestURI())
+                .build();
+    }
+
+}
+
+@Builder
+record ErrorStdMessage(
+        String message,
+        String path,
+        @JsonProperty("code")
+        Integer statusCode,
+        @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss'Z'")
+        LocalDateTime timestamp
+){ }
+
+@Configuration
+@EnableCaching
+@RequiredArgsConstructor
+class RedisConfig {
+
+    @Value("${app.props.redis.compression-threshold:512}")
+    private int compressionThreshold;
+
+    private final RedisConnectionFactory connectionFactory;
+    @Bean
+    public RedisCacheManager cacheManager() {
+        RedisCacheConfiguration config = RedisCacheConfiguration
+                .defaultCacheConfig()
+                .entryTtl(Duration.ofMinutes(3))
+                .serializeValuesWith(RedisSerializationContext
+                        .SerializationPair
+                        .fromSerializer(compactRedisSerializer()))
+                .disableCachingNullValues();
+
+        return RedisCacheManager
+                .builder(connectionFactory)
+                .withCacheConfiguration("payments", config)
+                .build();
+    }
+
+    @Bean
+    public RedisTemplate<String, PaymentDto> redisTemplate() {
+
+        RedisTemplate<String, PaymentDto> template = new RedisTemplate<String, PaymentDto>();
+
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(new StringRedisSerializer());
+        template.setValueSerializer(compactRedisSerializer());
+
+        return template;
+    }
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(PaymentNotificationHub notificationHub){
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(
+                (message, pattern) -> notificationHub.onChannelMessage(message.getBody()),
+                new ChannelTopic(PaymentNotificationHub.CHANNEL));
+        return container;
+    }
+
+    @Bean
+    public CompactPaymentRedisSerializer compactRedisSerializer(){
+        return new CompactPaymentRedisSerializer(compressionThreshold);
+    }
+
+}
+
+/**
+ * Binary encoding for the payment values kept on Redis, shared by the template and the cache manager.
+ * Layout is a schema version byte, a flags byte and the body, deflated once it reaches the threshold.
+ * Entries written with another schema version (or the former JSON) read as a cache miss.
+ */
+class CompactPaymentRedisSerializer implements RedisSerializer<Object> {
+    static final byte SCHEMA_VERSION = 3;
+    static final byte FLAG_COMPRESSED = 1;
+    static final byte FLAG_COLLECTION = 2;
+    private static final int HEADER_SIZE = 2;
+
+    private final int compressionThreshold;
+
+    CompactPaymentRedisSerializer(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        if (value == null){
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(body);
+            byte flags = 0;
+            if (value instanceof PaymentDto dto){
+                writePayment(out, dto);
+            } else if (value instanceof Collection<?> dtos){
+                flags |= FLAG_COLLECTION;
+                out.writeInt(dtos.size());
+                for (Object dto : dtos){
+                    writePayment(out, (PaymentDto) dto);
+                }
+            } else {
+                throw new SerializationException("Unsupported value on payment cache " + value.getClass());
+            }
+            byte[] raw = body.toByteArray();
+            if (raw.length >= compressionThreshold){
+                byte[] deflated = deflate(raw);
+                if (deflated.length < raw.length){
+                    raw = deflated;
+                    flags |= FLAG_COMPRESSED;
+                }
+            }
+            byte[] result = new byte[raw.length + HEADER_SIZE];
+            result[0] = SCHEMA_VERSION;
+            result[1] = flags;
+            System.arraycopy(raw, 0, result, HEADER_SIZE, raw.length);
+            return result;
+        } catch (IOException ex){
+            throw new SerializationException("Error serializing payment value", ex);
+        }
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length < HEADER_SIZE || bytes[0] != SCHEMA_VERSION){
+            return null;
+        }
+        byte flags = bytes[1];
+        try {
+            InputStream body = new ByteArrayInputStream(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+            if ((flags & FLAG_COMPRESSED) != 0){
+                body = new InflaterInputStream(body);
+            }
+            DataInputStream in = new DataInputStream(body);
+            if ((flags & FLAG_COLLECTION) == 0){
+                return readPayment(in);
+            }
+            int size = in.readInt();
+            Set<PaymentDto> dtos = new HashSet<>(Math.max(16, size * 4 / 3 + 1));
+            for (int i = 0; i < size; i++){
+                dtos.add(readPayment(in));
+            }
+            return dtos;
+        } catch (IOException ex){
+            throw new SerializationException("Error deserializing payment value", ex);
+        }
+    }
+
+    static void writePayment(DataOutputStream out, PaymentDto dto) throws IOException {
+        int present = (dto.id() != null ? 1 : 0)
+                | (dto.paymentNumber() != null ? 1 << 1 : 0)
+                | (dto.amount() != null ? 1 << 2 : 0)
+                | (dto.timestamp() != null ? 1 << 3 : 0)
+                | (dto.payerName() != null ? 1 << 4 : 0)
+                | (dto.state() != null ? 1 << 5 : 0)
+                | (dto.version() != null ? 1 << 6 : 0);
+        out.writeByte(present);
+        if (dto.id() != null){
+            out.writeLong(dto.id().getMostSignificantBits());
+            out.writeLong(dto.id().getLeastSignificantBits());
+        }
+        if (dto.paymentNumber() != null){
+            out.writeInt(dto.paymentNumber());
+        }
+        if (dto.amount() != null){
+            writeAmount(out, dto.amount());
+        }
+        if (dto.timestamp() != null){
+            out.writeLong(dto.timestamp().getEpochSecond());
+            out.writeInt(dto.timestamp().getNano());
+        }
+        if (dto.payerName() != null){
+            out.writeUTF(dto.payerName());
+        }
+        if (dto.state() != null){
+            out.writeByte(stateCode(dto.state()));
+        }
+        if (dto.version() != null){
+            out.writeLong(dto.version());
+        }
+    }
+
+    static PaymentDto readPayment(DataInputStream in) throws IOException {
+        int present = in.readUnsignedByte();
+        PaymentDto.PaymentDtoBuilder builder = PaymentDto.builder();
+        if ((present & 1) != 0){
+            builder.id(new UUID(in.readLong(), in.readLong()));
+        }
+        if ((present & 1 << 1) != 0){
+            builder.paymentNumber(in.readInt());
+        }
+        if ((present & 1 << 2) != 0){
+            builder.amount(readAmount(in));
+        }
+        if ((present & 1 << 3) != 0){
+            builder.timestamp(Instant.ofEpochSecond(in.readLong(), in.readInt()));
+        }
+        if ((present & 1 << 4) != 0){
+            builder.payerName(in.readUTF());
+        }
+        if ((present & 1 << 5) != 0){
+            builder.state(stateOf(in.readUnsignedByte()));
+        }
+        if ((present & 1 << 6) != 0){
+            builder.version(in.readLong());
+        }
+        return builder.build();
+    }
+
+    // scale as a zigzag varint, it may be negative
+    static void writeAmount(DataOutputStream out, BigDecimal amount) throws IOException {
+        byte[] unscaled = amount.unscaledValue().toByteArray();
+        writeVarInt(out, (amount.scale() << 1) ^ (amount.scale() >> 31));
+        writeVarInt(out, unscaled.length);
+        out.write(unscaled);
+    }
+
+    static BigDecimal readAmount(DataInputStream in) throws IOException {
+        int zigzag = readVarInt(in);
+        int scale = (zigzag >>> 1) ^ -(zigzag & 1);
+        byte[] unscaled = new byte[readVarInt(in)];
+        in.readFully(unscaled);
+        return new BigDecimal(new BigInteger(unscaled), scale);
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0){
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7){
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    // codes are part of the stored format: reordering States must not change them, new states take a new code
+    static int stateCode(States state){
+        return switch (state){
+            case NEW -> 1;
+            case PRE_AUTH -> 2;
+            case PRE_AUTH_ERROR -> 3;
+            case AUTH -> 4;
+            case AUTH_ERROR -> 5;
+            case AUTH_AUTHORIZED -> 6;
+        };
+    }
+
+    static States stateOf(int code) throws IOException {
+        return switch (code){
+            case 1 -> States.NEW;
+            case 2 -> States.PRE_AUTH;
+            case 3 -> States.PRE_AUTH_ERROR;
+            case 4 -> States.AUTH;
+            case 5 -> States.AUTH_ERROR;
+            case 6 -> States.AUTH_AUTHORIZED;
+            default -> throw new IOException("Unknown payment state code " + code);
+        };
+    }
+
+    private static byte[] deflate(byte[] raw) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+            try (DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater)){
+                dos.write(raw);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
+
+@Configuration
+@Profile("replica")
+class DataSourceRoutingConfig {
+
+    @Value("${app.props.datasource.replica.urls}")
+    private List<String> replicaUrls;
+
+    @Value("${app.props.datasource.replica.username:${spring.datasource.username:}}")
+    private String replicaUsername;
+
+    @Value("${app.props.datasource.replica.password:${spring.datasource.password:}}")
+    private String replicaPassword;
+
+    @Value("${app.props.datasource.replica.pool-size:10}")
+    private int replicaPoolSize;
+
+    @Value("${app.props.datasource.replica.lag-query:}")
+    private String lagQuery;
+
+    @Value("${app.props.datasource.replica.max-lag-seconds:5}")
+    private long maxLagSeconds;
+
+    @Value("${app.props.datasource.replica.probe-enabled:true}")
+    private boolean probeEnabled;
+
+    // bound like the auto-configured pool, so spring.datasource.hikari.* keeps applying to the primary
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(
+            DataSourceProperties properties,
+            MeterRegistry meterRegistry){
+
+        HikariDataSource primary = properties
+                .initializeDataSourceBuilder()
+                .type(HikariDataSource.class)
+                .build();
+        primary.setPoolName(ReplicaRoutingDataSource.PRIMARY);
+        primary.setMetricRegistry(meterRegistry);
+        return primary;
+    }
+
+    @Bean
+    public ReplicaRoutingDataSource routingDataSource(
+            HikariDataSource primaryDataSource,
+            MeterRegistry meterRegistry){
+
+        Map<String, DataSource> replicas = new LinkedHashMap<>();
+        for (int i = 0; i < replicaUrls.size(); i++){
+            HikariDataSource replica = DataSourceBuilder
+                    .create()
+                    .type(HikariDataSource.class)
+                    .url(replicaUrls.get(i).trim())
+                    .username(replicaUsername)
+                    .password(replicaPassword)
+                    .build();
+            replica.setPoolName("replica-" + i);
+            replica.setMaximumPoolSize(replicaPoolSize);
+            replica.setReadOnly(true);
+            replica.setMetricRegistry(meterRegistry);
+            replicas.put(replica.getPoolName(), replica);
+        }
+
+        return new ReplicaRoutingDataSource(primaryDataSource, replicas, lagQuery, maxLagSeconds, probeEnabled, meterRegistry);
+    }
+
+    // the physical connection is only taken on the first statement, once the read-only flag is already bound
+    @Bean
+    @Primary
+    public DataSource dataSource(ReplicaRoutingDataSource routingDataSource){
+        return new LazyConnectionDataSourceProxy(routingDataSource);
+    }
+
+}
+
+@Slf4j
+class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+    public static final String PRIMARY = "primary";
+
+    private final Map<String, DataSource> replicas;
+    private final String lagQuery;
+    private final long maxLagSeconds;
+    private final boolean probeEnabled;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, AtomicLong> lagSeconds = new HashMap<>();
+    private final Set<String> healthyReplicas = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger next = new AtomicInteger();
+
+    ReplicaRoutingDataSource(
+            DataSource primary,
+            Map<String, DataSource> replicas,
+            String lagQuery,
+            long maxLagSeconds,
+            boolean probeEnabled,
+            MeterRegistry meterRegistry){
+
+        this.replicas = replicas;
+        this.lagQuery = lagQuery;
+        this.maxLagSeconds = maxLagSeconds;
+        this.probeEnabled = probeEnabled;
+        this.meterRegistry = meterRegistry;
 
-        return RedisCacheManager
-                .builder(connectionFactory)
-                .withCacheConfiguration("payments", config)
-                .build();
+        Map<Object, Object> targets = new HashMap<>(replicas);
+        targets.put(PRIMARY, primary);
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        healthyReplicas.addAll(replicas.keySet());
+        replicas.keySet().forEach(name -> lagSeconds.put(name,
+                meterRegistry.gauge("payment.datasource.replica.lag", Tags.of("pool", name), new AtomicLong())));
     }
 
-    @Bean
-    public RedisTemplate<String, PaymentDto> redisTemplate() {
-
-        RedisTemplate<String, PaymentDto> template = new RedisTemplate<String, PaymentDto>();
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()
+                || !TransactionSynchronizationManager.isCurrentTransactionReadOnly()){
+            return route(PRIMARY, "write");
+        }
+        List<String> candidates = replicas
+                .keySet()
+                .stream()
+                .filter(healthyReplicas::contains)
+                .toList();
+        if (candidates.isEmpty()){
+            return route(PRIMARY, "fallback");
+        }
+        return route(candidates.get(Math.floorMod(next.getAndIncrement(), candidates.size())), "read");
+    }
 
-        template.setConnectionFactory(connectionFactory);
-        template.setKeySerializer(new StringRedisSerializer());
-        template.setValueSerializer(jsonRedisSerializer());
+    @Scheduled(fixedDelayString = "${app.props.datasource.replica.probe-interval-ms:5000}")
+    public void refreshReplicaHealth(){
+        if (!probeEnabled){
+            return;
+        }
+        replicas.forEach((name, replica) -> markHealth(name, isFresh(name, replica)));
+    }
 
-        return template;
+    public void markHealth(String name, boolean healthy){
+        if (healthy){
+            if (healthyReplicas.add(name)){
+                log.info("Replica " + name + " is back in the read rotation");
+            }
+        } else if (healthyReplicas.remove(name)){
+            log.warn("Replica " + name + " removed from the read rotation, reads fall back to primary");
+        }
     }
 
-    private Jackson2JsonRedisSerializer jsonRedisSerializer(){
-        return new Jackson2JsonRedisSerializer(objectMapper, PaymentDto.class);
+    private boolean isFresh(String name, DataSource replica){
+        try (Connection con = replica.getConnection()){
+            if (lagQuery == null || lagQuery.isBlank()){
+                return con.isValid(1);
+            }
+            try (Statement st = con.createStatement(); ResultSet rs = st.executeQuery(lagQuery)){
+                if (!rs.next()){
+                    return false;
+                }
+                long lag = rs.getLong(1);
+                if (rs.wasNull()){
+                    return false;
+                }
+                lagSeconds.get(name).set(lag);
+                return lag <= maxLagSeconds;
+            }
+        } catch (SQLException ex){
+            log.warn("Replica " + name + " probe failed " + ex.getMessage());
+            return false;
+        }
     }
 
+    private String route(String pool, String reason){
+        meterRegistry
+                .counter("payment.datasource.route", "pool", pool, "reason", reason)
+                .increment();
+        return pool;
+    }
 }
 
 enum States {
@@ -456,9 +4032,18 @@ enum Events{
 @RequiredArgsConstructor
 class StateMachineConfig extends EnumStateMachineConfigurerAdapter<States, Events> {
     public static final String PAYMENT_HEADER = "paymentNumber";
+    public static final String PAYER_HEADER = "payerName";
+    public static final String PERSISTED_HEADER = "persisted";
+    public static final String AMOUNT_HEADER = "amount";
+    public static final String SKIPPED_VARIABLE = "skipped";
     private final PreAuthAction preAuthAction;
     private final AuthAction authAction;
     private final PaymentGuard paymentGuard;
+    private final PaymentNotificationHub notificationHub;
+    private final LatencyTracer latencyTracer;
+    private final StateRollups stateRollups;
+    private final RedisLookupCache redisLookupCache;
+    private final PaymentTransitionLog transitionLog;
     @Override
     public void configure(StateMachineConfigurationConfigurer<States, Events> config) throws Exception {
         config
@@ -520,17 +4105,267 @@ class StateMachineConfig extends EnumStateMachineConfigurerAdapter<States, Event
             public void stateChanged(State<States, Events> from, State<States, Events> to) {
                 System.out.println("State change from " + from.getId() + " to " + to.getId());
             }
+
+            @Override
+            public void stateContext(StateContext<States, Events> stateContext) {
+                // same transition as stateChanged, but with the machine and message that identify the payment
+                if (stateContext.getStage() != StateContext.Stage.STATE_CHANGED
+                        || stateContext.getSource() == null
+                        || stateContext.getTarget() == null){
+                    return;
+                }
+                if (stateContext.getExtendedState().getVariables().remove(SKIPPED_VARIABLE) != null){
+                    // the action found the payment moved on already, there is nothing to record or announce
+                    return;
+                }
+                Integer paymentNumber = (Integer) stateContext.getMessageHeader(PAYMENT_HEADER);
+                transitionLog.append(PaymentTransition
+                        .builder()
+                        .paymentId(stateContext.getStateMachine().getUuid())
+                        .paymentNumber(paymentNumber)
+                        .fromState(stateContext.getSource().getId())
+                        .toState(stateContext.getTarget().getId())
+                        .event(stateContext.getEvent())
+                        .occurredAt(Instant.now())
+                        .build());
+                stateRollups.record(stateContext.getTarget().getId(), (BigDecimal) stateContext.getMessageHeader(AMOUNT_HEADER));
+                // the cached lookups carry the version their ETag is built from
+                redisLookupCache.evict(stateContext.getStateMachine().getUuid(), paymentNumber);
+                if (LatencyTracer.TERMINAL_STATES.contains(stateContext.getTarget().getId())){
+                    latencyTracer.finish(paymentNumber, stateContext.getTarget().getId());
+                }
+                notificationHub.publish(PaymentStateNotification
+                        .builder()
+                        .id(stateContext.getStateMachine().getUuid())
+                        .paymentNumber(paymentNumber)
+                        .payerName((String) stateContext.getMessageHeader(PAYER_HEADER))
+                        .from(stateContext.getSource().getId())
+                        .to(stateContext.getTarget().getId())
+                        .timestamp(Instant.now())
+                        .build());
+            }
         };
     }
 }
 
+/**
+ * Lanes of pre-authorization requests. The standard lane keeps the original queue and routing key;
+ * high value and bulk payments get a queue of their own on the same exchange, with routing keys
+ * outside the pattern the standard queue is bound with. The pre-authorize module shares the queue
+ * names and schedules its workers across the lanes by weight.
+ */
+enum PriorityLane {
+    HIGH("pre_authorize_high", "payment.stub.lane.high"),
+    STANDARD(RabbitConfig.PAYMENT_PRE_AUTHORIZE, "payment.stub.pre.auth.key"),
+    BULK("pre_authorize_bulk", "payment.stub.lane.bulk");
+
+    final String queue;
+    final String routingKey;
+
+    PriorityLane(String queue, String routingKey){
+        this.queue = queue;
+        this.routingKey = routingKey;
+    }
+}
+
+/**
+ * Picks the lane of a payment from its amount and the payer's tier. Tiers are not stored with the
+ * payments, premium payers are listed by name in app.props.lanes.premium-payers.
+ */
+@Component
+class PriorityLanes {
+    private final MeterRegistry meterRegistry;
+    private final BigDecimal highAmount;
+    private final BigDecimal bulkAmount;
+    private final Set<String> premiumPayers;
+
+    PriorityLanes(
+            MeterRegistry meterRegistry,
+            @Value("${app.props.lanes.high-amount:10000}") BigDecimal highAmount,
+            @Value("${app.props.lanes.bulk-amount:10}") BigDecimal bulkAmount,
+            @Value("${app.props.lanes.premium-payers:}") Set<String> premiumPayers){
+
+        this.meterRegistry = meterRegistry;
+        this.highAmount = highAmount;
+        this.bulkAmount = bulkAmount;
+        this.premiumPayers = premiumPayers;
+    }
+
+    public PriorityLane classify(Payment payment){
+        PriorityLane lane;
+        if (payment.getAmount().compareTo(highAmount) >= 0 || premiumPayers.contains(payment.getPayerName())){
+            lane = PriorityLane.HIGH;
+        } else if (payment.getAmount().compareTo(bulkAmount) < 0){
+            lane = PriorityLane.BULK;
+        } else {
+            lane = PriorityLane.STANDARD;
+        }
+        meterRegistry.counter("payment.lane.assigned", "lane", lane.name()).increment();
+        return lane;
+    }
+}
+
+/**
+ * Groups payments entering AUTH into one authorize request per routing key. A batch is sent once
+ * batch-size payments joined it or linger-ms passed since the first one did, so the batch size and
+ * the linger trade round trips against the extra wait of the first payment in a batch. A batch the
+ * broker refuses is parked and retried every retry-ms; payments added while the batcher is not
+ * running are sent on their own.
+ */
+@Component
+@Slf4j
+class AuthorizationBatcher implements SmartLifecycle {
+    static final String DEFAULT_ROUTING_KEY = "payment.stub.auth.default";
+
+    private final RabbitTemplate rabbitTemplate;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final long retryMillis;
+    private final Map<String, List<PaymentDto>> open = new HashMap<>();
+    private final ConcurrentLinkedQueue<ParkedBatch> parked = new ConcurrentLinkedQueue<>();
+    private final DistributionSummary batchSizes;
+    private final Counter sendFailures;
+    private final ScheduledExecutorService lingerTimer =
+            Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "payment-auth-linger"));
+    private boolean running;
+
+    AuthorizationBatcher(
+            RabbitTemplate rabbitTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${app.props.authorize.batch-size:100}") int batchSize,
+            @Value("${app.props.authorize.linger-ms:20}") long lingerMillis,
+            @Value("${app.props.authorize.retry-ms:1000}") long retryMillis){
+
+        this.rabbitTemplate = rabbitTemplate;
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.retryMillis = retryMillis;
+        this.batchSizes = DistributionSummary
+                .builder("payment.authorize.batch.size")
+                .register(meterRegistry);
+        this.sendFailures = meterRegistry.counter("payment.authorize.batch.send.failures");
+        Gauge.builder("payment.authorize.batch.parked", parked, ConcurrentLinkedQueue::size).register(meterRegistry);
+    }
+
+    public void add(String routingKey, PaymentDto payment){
+        List<PaymentDto> full = null;
+        synchronized (open){
+            full = running ? join(routingKey, payment) : List.of(payment);
+        }
+        if (full != null){
+            trySend(routingKey, full);
+        }
+    }
+
+    private List<PaymentDto> join(String routingKey, PaymentDto payment){
+        List<PaymentDto> batch = open.get(routingKey);
+        if (batch == null){
+            batch = new ArrayList<>(batchSize);
+            open.put(routingKey, batch);
+            List<PaymentDto> first = batch;
+            lingerTimer.schedule(() -> lingerExpired(routingKey, first), lingerMillis, TimeUnit.MILLISECONDS);
+        }
+        batch.add(payment);
+        return batch.size() >= batchSize ? open.remove(routingKey) : null;
+    }
+
+    private void lingerExpired(String routingKey, List<PaymentDto> batch){
+        synchronized (open){
+            // the batch may have filled up and left already
+            if (!open.remove(routingKey, batch)){
+                return;
+            }
+        }
+        trySend(routingKey, batch);
+    }
+
+    void send(String routingKey, List<PaymentDto> batch){
+        AuthorizeBatchRequest request = AuthorizeBatchRequest
+                .builder()
+                .batchId(UUID.randomUUID())
+                .payments(batch)
+                .timestamp(Instant.now())
+                .build();
+        rabbitTemplate.convertAndSend(RabbitConfig.EXCHANGE_AUTH_TOPIC, routingKey, request);
+        batchSizes.record(batch.size());
+    }
+
+    private boolean trySend(String routingKey, List<PaymentDto> batch){
+        try {
+            send(routingKey, batch);
+            return true;
+        } catch (AmqpException ex){
+            sendFailures.increment();
+            parked.add(new ParkedBatch(routingKey, batch));
+            log.warn("Authorize batch of " + batch.size() + " payments parked for a retry " + ex.getMessage());
+            return false;
+        }
+    }
+
+    void retryParked(){
+        // one pass over what is parked now, a batch failing again waits for the next pass
+        for (int left = parked.size(); left > 0; left--){
+            ParkedBatch batch = parked.poll();
+            if (batch == null || !trySend(batch.routingKey(), batch.payments())){
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        synchronized (open){
+            running = true;
+        }
+        lingerTimer.scheduleWithFixedDelay(this::retryParked, retryMillis, retryMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        Map<String, List<PaymentDto>> remaining;
+        synchronized (open){
+            running = false;
+            remaining = new HashMap<>(open);
+            open.clear();
+        }
+        lingerTimer.shutdownNow();
+        remaining.forEach(this::trySend);
+        retryParked();
+        parked.forEach(batch -> log.error("Authorize batch of " + batch.payments().size()
+                + " payments not sent before shutdown, they stay in AUTH"));
+    }
+
+    @Override
+    public boolean isRunning() {
+        synchronized (open){
+            return running;
+        }
+    }
+
+    @Override
+    public int getPhase() {
+        // started before and stopped after the containers whose responses move payments into AUTH
+        return Integer.MAX_VALUE - 1;
+    }
+
+    record ParkedBatch(String routingKey, List<PaymentDto> payments) { }
+}
+
 @Component
 @RequiredArgsConstructor
+@Slf4j
 class AuthAction implements Action<States, Events> {
 
     private final PaymentRepository paymentRepository;
+    private final PayerCacheGeneration payerCacheGeneration;
+    private final PaymentMapper paymentMapper;
+    private final AuthorizationBatcher authorizationBatcher;
     @Override
     public void execute(StateContext<States, Events> stateContext) {
+        if (Boolean.TRUE.equals(stateContext.getMessageHeader(StateMachineConfig.PERSISTED_HEADER))){
+            // applied in bulk already, the transition only announces it
+            return;
+        }
         Integer paymentNumber = (Integer) stateContext.getMessage().getHeaders().get(StateMachineConfig.PAYMENT_HEADER);
 
         Optional<Payment> paymentOpt = paymentRepository.findByPaymentNumber(paymentNumber);
@@ -540,9 +4375,20 @@ class AuthAction implements Action<States, Events> {
         }
 
         Payment updatePersist =  paymentOpt.get();
+        if (updatePersist.getPaymentState() != stateContext.getSource().getId()){
+            // a replayed response, the payment was moved on already and must not be authorized twice
+            log.info("Payment " + paymentNumber + " is " + updatePersist.getPaymentState() + ", not "
+                    + stateContext.getSource().getId() + ", transition skipped");
+            stateContext.getExtendedState().getVariables().put(StateMachineConfig.SKIPPED_VARIABLE, true);
+            return;
+        }
 
         updatePersist.setPaymentState(stateContext.getTarget().getId());
         paymentRepository.save(updatePersist);
+        payerCacheGeneration.bump(updatePersist.getPayerName());
+        if (stateContext.getTarget().getId() == States.AUTH){
+            authorizationBatcher.add(AuthorizationBatcher.DEFAULT_ROUTING_KEY, paymentMapper.entityToDto(updatePersist));
+        }
     }
 }
 
@@ -553,6 +4399,11 @@ class PreAuthAction implements Action<States, Events> {
     private final PaymentRepository paymentRepository;
     private final RabbitTemplate rabbitTemplate;
     private final PaymentMapper paymentMapper;
+    private final PayerCacheGeneration payerCacheGeneration;
+    private final ShardRouter shardRouter;
+    private final LatencyTracer latencyTracer;
+    private final TrafficJournal trafficJournal;
+    private final PriorityLanes priorityLanes;
 
     @Override
     public void execute(StateContext<States, Events> stateContext) {
@@ -570,16 +4421,28 @@ class PreAuthAction implements Action<States, Events> {
         updatePersist.setPaymentState(stateContext.getTarget().getId());
 
         try {
+            // persisted before the request leaves, a fast response must find the payment in PRE_AUTH
+            updatePersist = paymentRepository.save(updatePersist);
+            payerCacheGeneration.bump(updatePersist.getPayerName());
 
             PreAuthorizeMessageRequest request = PreAuthorizeMessageRequest
                     .builder()
                             .requestId(UUID.randomUUID())
                             .paymentDto(paymentMapper.entityToDto(updatePersist))
+                            .replyRoutingKey(shardRouter.replyRoutingKey(updatePersist.getPaymentNumber()))
                             .timestamp(Instant.now()).build();
 
-            rabbitTemplate.convertAndSend(RabbitConfig.EXCHANGE_PRE_AUTH_TOPIC, "payment.stub.pre.auth.key", request);
-
-            paymentRepository.save(updatePersist);
+            PriorityLane lane = priorityLanes.classify(updatePersist);
+            rabbitTemplate.convertAndSend(RabbitConfig.EXCHANGE_PRE_AUTH_TOPIC, lane.routingKey, request, message -> {
+                MessageProperties properties = message.getMessageProperties();
+                properties.setHeader(HopTrace.TRACE_ID, request.requestId().toString());
+                properties.setHeader(HopTrace.LANE, lane.name());
+                properties.setHeader(HopTrace.PAYMENT_NUMBER, paymentNumber);
+                properties.setHeader(HopTrace.PUBLISHED_AT, System.currentTimeMillis());
+                trafficJournal.append(JournalRecordType.PRE_AUTH_REQUEST, message.getBody());
+                return message;
+            });
+            latencyTracer.hopSince(paymentNumber, "publish");
 
         } catch (Exception ex){
             throw new RuntimeException("Message not processed "  + updatePersist.getPaymentNumber() + " Err " + ex.getMessage());
@@ -604,6 +4467,9 @@ class RabbitConfig{
     public static final String PAYMENT_AUTHORIZE = "authorize";
     public static final String EXCHANGE_PRE_AUTH_TOPIC = "pre_auth_exchange";
     public static final String EXCHANGE_AUTH_TOPIC = "auth_exchange";
+    public static final String EXCHANGE_PRE_AUTH_RESPONSE_TOPIC = "pre_auth_resp_exchange";
+    public static final String PAYMENT_AUTHORIZE_RESPONSE_QUEUE = "authorize_resp";
+    public static final String EXCHANGE_AUTH_RESPONSE_TOPIC = "auth_resp_exchange";
 
     //sender
     @Bean
@@ -622,6 +4488,16 @@ class RabbitConfig{
                 .with("payment.stub.pre.auth.#");
     }
     @Bean
+    public Declarables laneQueues(){
+        List<Declarable> declarables = new ArrayList<>();
+        for (PriorityLane lane : EnumSet.of(PriorityLane.HIGH, PriorityLane.BULK)){
+            Queue queue = new Queue(lane.queue);
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(exchangePreAuth()).with(lane.routingKey));
+        }
+        return new Declarables(declarables);
+    }
+    @Bean
     public Queue queueAuth(){
         return new Queue(PAYMENT_AUTHORIZE, false);
     }
@@ -637,13 +4513,50 @@ class RabbitConfig{
                 .with("payment.stub.auth.#");
     }
 
+    @Bean
+    public Queue queuePreAuthResponse(){
+        return new Queue(PAYMENT_PRE_AUTHORIZE_RESPONSE_QUEUE);
+    }
+    @Bean
+    public Queue queueAuthResponse(){
+        return new Queue(PAYMENT_AUTHORIZE_RESPONSE_QUEUE);
+    }
+    @Bean
+    public TopicExchange exchangeAuthResponse(){
+        return new TopicExchange(EXCHANGE_AUTH_RESPONSE_TOPIC);
+    }
+    @Bean
+    public Binding bindingAuthResponse(){
+        return BindingBuilder
+                .bind(queueAuthResponse())
+                .to(exchangeAuthResponse())
+                .with("payment.stub.auth.#");
+    }
+
+    //retry
+    @Bean
+    public RetryTopology retryTopology(
+            RabbitTemplate rabbitTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${app.props.retry.max-attempts:4}") int maxAttempts,
+            @Value("${app.props.retry.base-delay-ms:1000}") long baseDelayMillis){
+
+        return new RetryTopology(rabbitTemplate, meterRegistry, "payment", maxAttempts, baseDelayMillis);
+    }
+    @Bean
+    public Declarables retryDeclarables(RetryTopology retryTopology){
+        return retryTopology.declarables(PAYMENT_PRE_AUTHORIZE_RESPONSE_QUEUE, PAYMENT_AUTHORIZE_RESPONSE_QUEUE);
+    }
+
     //receiver
     @Bean
     public MessageListenerAdapter listenerAdapter(
             PaymentService paymentService,
-            MessageConverter messageConverter){
+            MessageConverter messageConverter,
+            LatencyTracer latencyTracer,
+            TrafficJournal trafficJournal){
 
-        MessageListenerAdapter mla = new MessageListenerAdapter();
+        MessageListenerAdapter mla = new TracingListenerAdapter(latencyTracer, trafficJournal);
         mla.setDefaultListenerMethod("processPreAuthorizeResponse");
         mla.setMessageConverter(messageConverter);
         mla.setDelegate(paymentService);
@@ -653,22 +4566,456 @@ class RabbitConfig{
     @Bean
     public SimpleMessageListenerContainer container(
             ConnectionFactory connectionFactory,
-            MessageListenerAdapter messageListenerAdapter){
+            MessageListenerAdapter messageListenerAdapter,
+            PreAuthorizeResponseBatchListener batchListener,
+            RetryTopology retryTopology,
+            @Value("${app.props.response-batch.enabled:false}") boolean batchEnabled,
+            @Value("${app.props.response-batch.size:100}") int batchSize,
+            @Value("${app.props.response-batch.receive-timeout-ms:50}") long receiveTimeoutMillis){
 
         SimpleMessageListenerContainer container = new SimpleMessageListenerContainer();
         container.setConnectionFactory(connectionFactory);
         container.setQueueNames(PAYMENT_PRE_AUTHORIZE_RESPONSE_QUEUE);
-        container.setMessageListener(messageListenerAdapter);
+        container.setErrorHandler(retryTopology);
+        if (batchEnabled){
+            // the batch is acked as a whole once the listener returned, that is after its commit
+            container.setConsumerBatchEnabled(true);
+            container.setBatchSize(batchSize);
+            container.setReceiveTimeout(receiveTimeoutMillis);
+            container.setPrefetchCount(Math.max(batchSize, AbstractMessageListenerContainer.DEFAULT_PREFETCH_COUNT));
+            container.setMessageListener(batchListener);
+        } else {
+            container.setMessageListener(messageListenerAdapter);
+        }
+        return container;
+    }
+
+    @Bean
+    public SimpleMessageListenerContainer authorizeContainer(
+            ConnectionFactory connectionFactory,
+            PaymentService paymentService,
+            ObjectMapper objectMapper,
+            RetryTopology retryTopology){
+
+        // not a bean, the pre-authorize container is wired with the only adapter bean by type
+        MessageListenerAdapter mla = new MessageListenerAdapter();
+        mla.setDefaultListenerMethod("processAuthorizeBatchResponse");
+        mla.setMessageConverter(new JsonConverterForMessageQueue(objectMapper, AuthorizeBatchResponse.class));
+        mla.setDelegate(paymentService);
+
+        SimpleMessageListenerContainer container = new SimpleMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.setQueueNames(PAYMENT_AUTHORIZE_RESPONSE_QUEUE);
+        container.setMessageListener(mla);
+        container.setErrorHandler(retryTopology);
         return container;
     }
 
 }
 
+/**
+ * Batched consumer of pre-authorization responses, used when app.props.response-batch.enabled is set.
+ * The container hands over up to size responses, or fewer once no new one arrived for
+ * receive-timeout-ms. Their current states are read with one query and the transitions applied with
+ * one update per outcome. Unreadable messages are parked on their own; if the bulk update fails the
+ * batch falls back to one response at a time, and a response that fails then is retried on its own.
+ */
 @Component
 @RequiredArgsConstructor
+@Slf4j
+class PreAuthorizeResponseBatchListener implements BatchMessageListener {
+
+    private final PaymentService paymentService;
+    private final JsonConverterForMessageQueue messageConverter;
+    private final RetryTopology retryTopology;
+    private final LatencyTracer latencyTracer;
+    private final TrafficJournal trafficJournal;
+
+    @Override
+    public void onMessageBatch(List<org.springframework.amqp.core.Message> messages) {
+        long start = System.nanoTime();
+        long arrivedAt = System.currentTimeMillis();
+        List<PreAuthorizeResponse> responses = new ArrayList<>(messages.size());
+        List<org.springframework.amqp.core.Message> readable = new ArrayList<>(messages.size());
+        List<Integer> traced = new ArrayList<>(messages.size());
+        for (org.springframework.amqp.core.Message message : messages){
+            traced.add(latencyTracer.arrived(message.getMessageProperties(), arrivedAt));
+            trafficJournal.append(JournalRecordType.PRE_AUTH_RESPONSE, message.getBody());
+            try {
+                responses.add((PreAuthorizeResponse) messageConverter.fromMessage(message));
+                readable.add(message);
+            } catch (MessageConversionException ex){
+                handOver(message, "Unreadable pre authorize response", ex);
+            }
+        }
+        if (!responses.isEmpty()){
+            try {
+                paymentService.processPreAuthorizeResponses(responses);
+            } catch (DataAccessException | TransactionException ex){
+                log.warn("Bulk apply of " + responses.size() + " pre authorize responses failed, applying one by one " + ex.getMessage());
+                for (int i = 0; i < responses.size(); i++){
+                    try {
+                        paymentService.processPreAuthorizeResponse(responses.get(i));
+                    } catch (RuntimeException failed){
+                        handOver(readable.get(i), "Pre authorize response not applied", failed);
+                    }
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        traced.forEach(paymentNumber -> latencyTracer.hop(paymentNumber, "process", elapsed));
+    }
+
+    private void handOver(org.springframework.amqp.core.Message message, String description, RuntimeException ex){
+        try {
+            retryTopology.handleError(new ListenerExecutionFailedException(description, ex, message));
+        } catch (AmqpRejectAndDontRequeueException moved){
+            // it is on a retry queue or the parking lot now, the rest of the batch goes on
+        }
+    }
+}
+
+/**
+ * Retry topology for listener failures. Attempt n waits in <prefix>.retry.n, whose TTL doubles per
+ * attempt, and is dead-lettered through a headers exchange back to the queue it was consumed from.
+ * After the last attempt, or at once when the body cannot be converted, it goes to <prefix>.parking-lot.
+ */
+@Slf4j
+class RetryTopology implements ErrorHandler {
+    static final String ATTEMPT_HEADER = "x-retry-attempt";
+    static final String QUEUE_HEADER = "x-retry-queue";
+    static final String REASON_HEADER = "x-failure-reason";
+
+    private final RabbitTemplate rabbitTemplate;
+    private final MeterRegistry meterRegistry;
+    private final String prefix;
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+
+    RetryTopology(
+            RabbitTemplate rabbitTemplate,
+            MeterRegistry meterRegistry,
+            String prefix,
+            int maxAttempts,
+            long baseDelayMillis){
+
+        this.rabbitTemplate = rabbitTemplate;
+        this.meterRegistry = meterRegistry;
+        this.prefix = prefix;
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+    }
+
+    public Declarables declarables(String... queues){
+        List<Declarable> declarables = new ArrayList<>();
+        declarables.add(new HeadersExchange(requeueExchange()));
+        for (int attempt = 1; attempt <= maxAttempts; attempt++){
+            declarables.add(QueueBuilder
+                    .durable(retryQueue(attempt))
+                    .ttl((int) (baseDelayMillis << (attempt - 1)))
+                    .deadLetterExchange(requeueExchange())
+                    .build());
+        }
+        declarables.add(QueueBuilder.durable(parkingLot()).build());
+        for (String queue : queues){
+            declarables.add(requeueBinding(queue));
+        }
+        return new Declarables(declarables);
+    }
+
+    public Binding requeueBinding(String queue){
+        return new Binding(
+                queue,
+                Binding.DestinationType.QUEUE,
+                requeueExchange(),
+                "",
+                Map.of("x-match", "all", QUEUE_HEADER, queue));
+    }
+
+    @Override
+    public void handleError(Throwable t) {
+        if (!(t instanceof ListenerExecutionFailedException failure) || failure.getFailedMessages().isEmpty()){
+            throw new AmqpRejectAndDontRequeueException("Listener failure without a message", t);
+        }
+        // a consumer batch fails as a whole and is rejected as a whole, so every message of it is moved
+        Set<String> destinations = new LinkedHashSet<>();
+        failure.getFailedMessages().forEach(failed -> destinations.add(move(failed, t)));
+        throw new AmqpRejectAndDontRequeueException("Message moved to " + String.join(", ", destinations), t);
+    }
+
+    private String move(org.springframework.amqp.core.Message failed, Throwable t){
+        MessageProperties properties = failed.getMessageProperties();
+        Throwable cause = NestedExceptionUtils.getMostSpecificCause(t);
+        String reason = cause.getClass().getSimpleName();
+        boolean poison = hasCause(t, MessageConversionException.class);
+        Object previous = properties.getHeader(ATTEMPT_HEADER);
+        int attempt = (previous instanceof Number number ? number.intValue() : 0) + 1;
+
+        String queue = properties.getHeader(QUEUE_HEADER) != null
+                ? properties.getHeader(QUEUE_HEADER).toString()
+                : properties.getConsumerQueue();
+        properties.setHeader(QUEUE_HEADER, queue);
+        properties.setHeader(REASON_HEADER, reason + ": " + cause.getMessage());
+        properties.setDeliveryMode(MessageDeliveryMode.PERSISTENT);
+
+        String destination;
+        String outcome;
+        if (poison || attempt > maxAttempts){
+            destination = parkingLot();
+            outcome = "parked";
+            log.error("Message from " + queue + " parked after " + (attempt - 1) + " retries " + reason);
+        } else {
+            properties.setHeader(ATTEMPT_HEADER, attempt);
+            destination = retryQueue(attempt);
+            outcome = "retry";
+            log.warn("Message from " + queue + " scheduled for retry " + attempt + " " + reason);
+        }
+        rabbitTemplate.send("", destination, failed);
+        meterRegistry
+                .counter("app.message.failures", "queue", queue, "reason", reason, "outcome", outcome)
+                .increment();
+        return destination;
+    }
+
+    private String requeueExchange(){
+        return prefix + ".retry.requeue";
+    }
+
+    private String retryQueue(int attempt){
+        return prefix + ".retry." + attempt;
+    }
+
+    private String parkingLot(){
+        return prefix + ".parking-lot";
+    }
+
+    private static boolean hasCause(Throwable t, Class<? extends Throwable> type){
+        for (Throwable current = t; current != null; current = current.getCause()){
+            if (type.isInstance(current)){
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+/**
+ * Maps payments to virtual shards by hashing the payment number, and shards to live nodes with
+ * rendezvous hashing, so a node joining or leaving only moves the shards it wins or used to hold.
+ */
+@Component
+class ShardRouter {
+    static final String SHARD_QUEUE_PREFIX = "pre_authorize_resp.shard.";
+    static final String SHARD_ROUTING_KEY_PREFIX = "payment.stub.shard.";
+
+    @Value("${app.props.sharding.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.props.sharding.shards:64}")
+    private int shardCount;
+
+    public int shardCount(){
+        return shardCount;
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    public int shardOf(Integer paymentNumber){
+        return Math.floorMod(mix(paymentNumber.intValue()), shardCount);
+    }
+
+    public String replyRoutingKey(Integer paymentNumber){
+        return enabled ? SHARD_ROUTING_KEY_PREFIX + shardOf(paymentNumber) : null;
+    }
+
+    public static String queueName(int shard){
+        return SHARD_QUEUE_PREFIX + shard;
+    }
+
+    public Set<Integer> ownedShards(String nodeId, Collection<String> liveNodes){
+        Set<Integer> owned = new TreeSet<>();
+        for (int shard = 0; shard < shardCount; shard++){
+            String owner = nodeId;
+            long best = Long.MIN_VALUE;
+            for (String node : liveNodes){
+                long weight = weight(node, shard);
+                if (weight > best || (weight == best && node.compareTo(owner) < 0)){
+                    best = weight;
+                    owner = node;
+                }
+            }
+            if (owner.equals(nodeId)){
+                owned.add(shard);
+            }
+        }
+        return owned;
+    }
+
+    private static long weight(String node, int shard){
+        long hash = 1125899906842597L;
+        for (int i = 0; i < node.length(); i++){
+            hash = 31 * hash + node.charAt(i);
+        }
+        return mix(hash ^ (shard * 0x9E3779B97F4A7C15L));
+    }
+
+    private static int mix(int value){
+        int h = value;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static long mix(long value){
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93e53b5cd9bL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
+
+@Configuration
+@Profile("sharded")
+class ShardingConfig {
+
+    @Bean
+    public TopicExchange exchangePreAuthResponse(){
+        return new TopicExchange(RabbitConfig.EXCHANGE_PRE_AUTH_RESPONSE_TOPIC);
+    }
+
+    @Bean
+    public Declarables shardQueues(ShardRouter shardRouter, RetryTopology retryTopology){
+        List<Declarable> declarables = new ArrayList<>();
+        for (int shard = 0; shard < shardRouter.shardCount(); shard++){
+            Queue queue = new Queue(ShardRouter.queueName(shard));
+            declarables.add(queue);
+            declarables.add(BindingBuilder
+                    .bind(queue)
+                    .to(exchangePreAuthResponse())
+                    .with(ShardRouter.SHARD_ROUTING_KEY_PREFIX + shard));
+            declarables.add(retryTopology.requeueBinding(queue.getName()));
+        }
+        return new Declarables(declarables);
+    }
+}
+
+/**
+ * Keeps this node's share of the response shards. Nodes heartbeat into a Redis sorted set; each
+ * node recomputes the rendezvous assignment from the live members and moves its listener container
+ * onto the shard queues it now owns, stopping it while it owns none. During a hand-off two nodes may
+ * consume the same shard until the losing node's next heartbeat.
+ */
+@Component
+@Profile("sharded")
+@Slf4j
+class ShardCoordinator {
+    static final String NODES_KEY = "payment-core:nodes";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SimpleMessageListenerContainer container;
+    private final ShardRouter shardRouter;
+    private final String nodeId;
+    private final long nodeTtlMillis;
+    private volatile Set<Integer> owned = Set.of();
+
+    ShardCoordinator(
+            StringRedisTemplate stringRedisTemplate,
+            SimpleMessageListenerContainer container,
+            ShardRouter shardRouter,
+            @Value("${app.props.sharding.node-id:${random.uuid}}") String nodeId,
+            @Value("${app.props.sharding.node-ttl-ms:10000}") long nodeTtlMillis){
+
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.container = container;
+        this.shardRouter = shardRouter;
+        this.nodeId = nodeId;
+        this.nodeTtlMillis = nodeTtlMillis;
+    }
+
+    @PostConstruct
+    public void join(){
+        // runs before the container starts, so the shared response queue is never consumed
+        owned = assignment();
+        container.setQueueNames(queueNames(owned));
+        // with more nodes than shards there may be nothing to consume yet
+        container.setAutoStartup(!owned.isEmpty());
+        log.info("Node " + nodeId + " joined owning " + owned.size() + " shards");
+    }
+
+    @Scheduled(fixedDelayString = "${app.props.sharding.heartbeat-ms:2000}")
+    public void rebalance(){
+        Set<Integer> target = assignment();
+        if (target.equals(owned)){
+            return;
+        }
+        if (target.isEmpty() || owned.isEmpty()){
+            container.stop();
+            container.setQueueNames(queueNames(target));
+            if (!target.isEmpty()){
+                container.start();
+            }
+            log.info("Node " + nodeId + " rebalanced from " + owned.size() + " to " + target.size() + " shards");
+            owned = target;
+            return;
+        }
+        Set<Integer> added = new TreeSet<>(target);
+        added.removeAll(owned);
+        Set<Integer> removed = new TreeSet<>(owned);
+        removed.removeAll(target);
+        if (!added.isEmpty()){
+            container.addQueueNames(queueNames(added));
+        }
+        if (!removed.isEmpty()){
+            container.removeQueueNames(queueNames(removed));
+        }
+        owned = target;
+        log.info("Node " + nodeId + " rebalanced, +" + added.size() + " -" + removed.size() + " shards");
+    }
+
+    @PreDestroy
+    public void leave(){
+        stringRedisTemplate.opsForZSet().remove(NODES_KEY, nodeId);
+    }
+
+    private Set<Integer> assignment(){
+        long now = System.currentTimeMillis();
+        stringRedisTemplate.opsForZSet().add(NODES_KEY, nodeId, now);
+        stringRedisTemplate.opsForZSet().removeRangeByScore(NODES_KEY, 0, now - nodeTtlMillis);
+        Set<String> live = stringRedisTemplate.opsForZSet().rangeByScore(NODES_KEY, now - nodeTtlMillis, Double.MAX_VALUE);
+        if (live == null || live.isEmpty()){
+            live = Set.of(nodeId);
+        }
+        return shardRouter.ownedShards(nodeId, live);
+    }
+
+    private String[] queueNames(Set<Integer> shards){
+        return shards.stream().map(ShardRouter::queueName).toArray(String[]::new);
+    }
+}
+
+@Component
 class JsonConverterForMessageQueue implements MessageConverter {
 
     private final ObjectMapper objectMapper;
+    private final Class<?> targetType;
+
+    @Autowired
+    JsonConverterForMessageQueue(ObjectMapper objectMapper){
+        this(objectMapper, PreAuthorizeResponse.class);
+    }
+
+    JsonConverterForMessageQueue(ObjectMapper objectMapper, Class<?> targetType){
+        this.objectMapper = objectMapper;
+        this.targetType = targetType;
+    }
     @Override
     public org.springframework.amqp.core.Message toMessage(Object o, MessageProperties messageProperties) throws MessageConversionException {
         try {
@@ -681,9 +5028,9 @@ class JsonConverterForMessageQueue implements MessageConverter {
 
     }
     @Override
-    public PreAuthorizeResponse fromMessage(org.springframework.amqp.core.Message message) throws MessageConversionException {
+    public Object fromMessage(org.springframework.amqp.core.Message message) throws MessageConversionException {
         try {
-            return objectMapper.readValue(message.getBody(), PreAuthorizeResponse.class);
+            return objectMapper.readValue(message.getBody(), targetType);
         } catch (IOException e) {
             throw new MessageConversionException("Error converting JSON to Object ", e);
         }
@@ -694,6 +5041,7 @@ class JsonConverterForMessageQueue implements MessageConverter {
 record PreAuthorizeMessageRequest(
         @JsonProperty("request_id") UUID requestId,
         @JsonProperty("payment") PaymentDto paymentDto,
+        @JsonProperty("reply_routing_key") String replyRoutingKey,
         Instant timestamp
 ) { }
 
@@ -705,3 +5053,22 @@ record PreAuthorizeResponse(
         Instant timestamp
 ) { }
 
+@Builder
+record AuthorizeBatchRequest(
+        @JsonProperty("batch_id") UUID batchId,
+        @JsonProperty("payments") List<PaymentDto> payments,
+        Instant timestamp
+) { }
+
+@Builder
+record AuthorizeResult(
+        @JsonProperty("payment") PaymentDto paymentDto,
+        @JsonProperty("is_authorized") Boolean authorized
+) { }
+
+@Builder
+record AuthorizeBatchResponse(
+        @JsonProperty("batch_id") UUID batchId,
+        @JsonProperty("results") List<AuthorizeResult> results,
+        Instant timestamp
+) { }
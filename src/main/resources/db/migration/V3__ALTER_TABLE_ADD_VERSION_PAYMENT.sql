@@ -0,0 +1,2 @@
+alter table payment
+    add column version bigint not null default 0;
\ No newline at end of file
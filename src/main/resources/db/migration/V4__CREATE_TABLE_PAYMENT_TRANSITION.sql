@@ -0,0 +1,17 @@
+create table payment_transition (
+    sequence_number bigint not null auto_increment,
+    payment_id varchar(36) not null,
+    payment_number integer,
+    from_state enum (
+    'NEW','AUTH','AUTH_AUTHORIZED','AUTH_ERROR','PRE_AUTH','PRE_AUTH_ERROR'
+    ) not null,
+    to_state enum (
+    'NEW','AUTH','AUTH_AUTHORIZED','AUTH_ERROR','PRE_AUTH','PRE_AUTH_ERROR'
+    ) not null,
+    event enum (
+    'PRE_AUTHORIZE','PRE_AUTH_APPROVED','PRE_AUTH_DECLINED','AUTH_APPROVED','AUTH_DECLINED'
+    ),
+    occurred_at datetime(6) not null,
+    primary key (sequence_number)
+) engine=InnoDB;
+create index idx_payment_transition_payment_sequence on payment_transition (payment_id, sequence_number);
@@ -0,0 +1,2 @@
+create index idx_payment_state_id on payment (payment_state, id);
+create index idx_payment_timestamp_id on payment (timestamp, id);
@@ -0,0 +1,91 @@
+package com.example.payment;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.AmqpConnectException;
+
+import java.math.BigDecimal;
+import java.net.ConnectException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AuthorizationBatcherTest {
+
+    final List<List<PaymentDto>> sent = new CopyOnWriteArrayList<>();
+    final AtomicInteger refusals = new AtomicInteger();
+    final AuthorizationBatcher batcher = new AuthorizationBatcher(null, new SimpleMeterRegistry(), 3, 50, 50) {
+        @Override
+        void send(String routingKey, List<PaymentDto> batch) {
+            if (refusals.getAndDecrement() > 0){
+                throw new AmqpConnectException(new ConnectException("broker is down"));
+            }
+            sent.add(batch);
+        }
+    };
+
+    @BeforeEach
+    void setUp() {
+        batcher.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        batcher.stop();
+    }
+
+    @Test
+    void shouldSendAsSoonAsTheBatchIsFull() {
+        for (int i = 0; i < 3; i++){
+            batcher.add(AuthorizationBatcher.DEFAULT_ROUTING_KEY, payment(i));
+        }
+
+        assertThat(sent).hasSize(1);
+        assertThat(sent.get(0)).hasSize(3);
+    }
+
+    @Test
+    void shouldSendPartialBatchAfterLinger() throws InterruptedException {
+        batcher.add(AuthorizationBatcher.DEFAULT_ROUTING_KEY, payment(1));
+        batcher.add("payment.stub.auth.other", payment(2));
+
+        assertThat(sent).isEmpty();
+        Thread.sleep(200);
+        assertThat(sent).hasSize(2);
+    }
+
+    @Test
+    void shouldRetryABatchTheBrokerRefused() throws InterruptedException {
+        refusals.set(1);
+        for (int i = 0; i < 3; i++){
+            batcher.add(AuthorizationBatcher.DEFAULT_ROUTING_KEY, payment(i));
+        }
+
+        assertThat(sent).isEmpty();
+        Thread.sleep(200);
+        assertThat(sent).hasSize(1);
+        assertThat(sent.get(0)).hasSize(3);
+    }
+
+    @Test
+    void shouldSendAloneOnceStopped() {
+        batcher.stop();
+
+        batcher.add(AuthorizationBatcher.DEFAULT_ROUTING_KEY, payment(1));
+
+        assertThat(sent).hasSize(1);
+    }
+
+    private PaymentDto payment(int paymentNumber) {
+        return PaymentDto
+                .builder()
+                .paymentNumber(paymentNumber)
+                .amount(new BigDecimal("4.5"))
+                .payerName("John Green")
+                .build();
+    }
+}
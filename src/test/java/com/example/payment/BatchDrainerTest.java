@@ -0,0 +1,51 @@
+package com.example.payment;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BatchDrainerTest {
+
+    @Test
+    void shouldKeepTheBatchWhenTheSinkFails() {
+        List<Integer> flushed = new CopyOnWriteArrayList<>();
+        AtomicInteger attempts = new AtomicInteger();
+        BatchDrainer<Integer> drainer = new BatchDrainer<>("test-drainer", 100, 10, 5, 5_000, batch -> {
+            if (attempts.incrementAndGet() == 1){
+                throw new QueryTimeoutException("database is down");
+            }
+            flushed.addAll(batch);
+        }, batch -> { });
+        drainer.start();
+
+        assertThat(drainer.offer(1)).isTrue();
+        assertThat(drainer.offer(2)).isTrue();
+        drainer.stop();
+
+        assertThat(flushed).containsExactly(1, 2);
+        assertThat(attempts.get()).isGreaterThan(1);
+        assertThat(drainer.offer(3)).isFalse();
+    }
+
+    @Test
+    void shouldAbandonWhatItCannotFlushAfterTheDrainTimeout() {
+        List<Integer> abandoned = new ArrayList<>();
+        BatchDrainer<Integer> drainer = new BatchDrainer<>("test-drainer", 100, 10, 5, 0, batch -> {
+            throw new IllegalStateException("no transaction");
+        }, abandoned::addAll);
+        drainer.start();
+
+        drainer.offer(1);
+        drainer.offer(2);
+        drainer.stop();
+
+        assertThat(abandoned).containsExactlyInAnyOrder(1, 2);
+        assertThat(drainer.isHealthy()).isFalse();
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.payment;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompactPaymentRedisSerializerTest {
+
+    final CompactPaymentRedisSerializer serializer = new CompactPaymentRedisSerializer(512);
+    final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+
+    @Test
+    void shouldRoundTripSinglePayment() {
+        PaymentDto dto = payment(1);
+        byte[] bytes = serializer.serialize(dto);
+
+        assertThat(bytes[0]).isEqualTo(CompactPaymentRedisSerializer.SCHEMA_VERSION);
+        assertThat(serializer.deserialize(bytes)).isEqualTo(dto);
+    }
+
+    @Test
+    void shouldRoundTripCompressedPage() {
+        Set<PaymentDto> page = page(100);
+        byte[] bytes = serializer.serialize(page);
+
+        assertThat(bytes[1] & CompactPaymentRedisSerializer.FLAG_COMPRESSED).isNotZero();
+        assertThat(serializer.deserialize(bytes)).isEqualTo(page);
+    }
+
+    @Test
+    void shouldReadLegacyJsonAsCacheMiss() {
+        byte[] legacy = "{\"payer_name\":\"John Green\"}".getBytes(StandardCharsets.UTF_8);
+        assertThat(serializer.deserialize(legacy)).isNull();
+    }
+
+    @Test
+    void shouldRoundTripAmountsBeyondOneByte() {
+        BigDecimal wide = new BigDecimal(BigInteger.TEN.pow(700), 300);
+        BigDecimal negativeScale = new BigDecimal(BigInteger.valueOf(45), -3);
+        for (BigDecimal amount : new BigDecimal[]{wide, negativeScale}){
+            PaymentDto dto = PaymentDto.builder().amount(amount).build();
+
+            assertThat(((PaymentDto) serializer.deserialize(serializer.serialize(dto))).amount()).isEqualTo(amount);
+        }
+    }
+
+    @Test
+    void shouldStoreStatesByStableCode() {
+        for (States state : States.values()){
+            PaymentDto dto = PaymentDto.builder().state(state).build();
+            byte[] bytes = serializer.serialize(dto);
+
+            assertThat(bytes[bytes.length - 1]).isEqualTo((byte) CompactPaymentRedisSerializer.stateCode(state));
+            assertThat(serializer.deserialize(bytes)).isEqualTo(dto);
+        }
+    }
+
+    @Test
+    void shouldStoreLessThanJson() {
+        Jackson2JsonRedisSerializer<Object> json = json();
+        for (int size : new int[]{1, 10, 100}){
+            Set<PaymentDto> page = page(size);
+
+            assertThat(serializer.serialize(page).length).isLessThan(json.serialize(page).length);
+        }
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void printEncodeDecodeCost() {
+        Jackson2JsonRedisSerializer<Object> json = json();
+        for (int size : new int[]{1, 10, 100}){
+            Set<PaymentDto> page = page(size);
+            byte[] jsonBytes = json.serialize(page);
+            byte[] compactBytes = serializer.serialize(page);
+
+            long jsonEncode = nanosPerOp(() -> json.serialize(page));
+            long jsonDecode = nanosPerOp(() -> json.deserialize(jsonBytes));
+            long compactEncode = nanosPerOp(() -> serializer.serialize(page));
+            long compactDecode = nanosPerOp(() -> serializer.deserialize(compactBytes));
+
+            System.out.printf(
+                    "page=%d json=%dB enc=%dns dec=%dns | compact=%dB enc=%dns dec=%dns%n",
+                    size, jsonBytes.length, jsonEncode, jsonDecode,
+                    compactBytes.length, compactEncode, compactDecode);
+        }
+    }
+
+    private Jackson2JsonRedisSerializer<Object> json() {
+        return new Jackson2JsonRedisSerializer<>(
+                objectMapper,
+                objectMapper.getTypeFactory().constructCollectionType(Set.class, PaymentDto.class));
+    }
+
+    private long nanosPerOp(Supplier<?> op) {
+        int iterations = 2_000;
+        for (int i = 0; i < iterations; i++){
+            op.get();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++){
+            op.get();
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    private Set<PaymentDto> page(int size) {
+        Set<PaymentDto> page = new HashSet<>();
+        for (int i = 0; i < size; i++){
+            page.add(payment(i));
+        }
+        return page;
+    }
+
+    private PaymentDto payment(int i) {
+        return PaymentDto
+                .builder()
+                .id(UUID.randomUUID())
+                .paymentNumber(184482800 + i)
+                .amount(new BigDecimal("12.40").add(BigDecimal.valueOf(i)))
+                .timestamp(Instant.now())
+                .payerName(i % 2 == 0 ? "John Green" : "Anne Púrple")
+                .state(States.values()[i % States.values().length])
+                .build();
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.payment;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LatencyTracerTest {
+
+    final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    final LatencyTracer tracer = new LatencyTracer(meterRegistry, 4);
+
+    @Test
+    void shouldListSlowestFinishedTracesWithTheirHops() throws InterruptedException {
+        tracer.begin(1);
+        tracer.begin(2);
+        tracer.hop(2, "handler", TimeUnit.MILLISECONDS.toNanos(5));
+        tracer.finish(1, States.PRE_AUTH_ERROR);
+        Thread.sleep(10);
+        tracer.finish(2, States.AUTH_AUTHORIZED);
+
+        assertThat(tracer.slowest(10))
+                .extracting(LatencyTrace::paymentNumber)
+                .containsExactly(2, 1);
+        assertThat(tracer.slowest(1).get(0).hopMillis()).containsEntry("handler", 5.0);
+        assertThat(meterRegistry.get("payment.trace.hop").tag("hop", "handler").timer().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("payment.trace.total").tag("outcome", "AUTH_AUTHORIZED").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldKeepOnlyTheLastTracesInTheRing() {
+        for (int paymentNumber = 1; paymentNumber <= 6; paymentNumber++){
+            tracer.begin(paymentNumber);
+            tracer.finish(paymentNumber, States.PRE_AUTH_ERROR);
+        }
+
+        assertThat(tracer.slowest(10))
+                .extracting(LatencyTrace::paymentNumber)
+                .containsExactlyInAnyOrder(3, 4, 5, 6);
+    }
+
+    @Test
+    void shouldSweepTracesThatNeverFinish() {
+        ReflectionTestUtils.setField(tracer, "openTimeoutMillis", 0L);
+        tracer.begin(7);
+
+        tracer.sweep();
+        tracer.finish(7, States.AUTH_ERROR);
+
+        assertThat(tracer.slowest(10)).isEmpty();
+        assertThat(meterRegistry.get("payment.trace.abandoned").counter().count()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.payment;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PayerRateLimiterTest {
+
+    final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    final Map<String, Long> buckets = new ConcurrentHashMap<>();
+    final AtomicInteger calls = new AtomicInteger();
+
+    final PayerRateLimiter limiter = limiter(meterRegistry, 1000, 100_000);
+
+    @Test
+    void shouldSpendLeasedTokensWithoutTheSharedBucket() {
+        for (int i = 0; i < 100; i++){
+            limiter.acquire("John Green");
+        }
+
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldThrottleOncePayerBudgetIsSpent() {
+        for (int i = 0; i < 10; i++){
+            limiter.acquire("Anne Purple");
+        }
+
+        assertThatThrownBy(() -> limiter.acquire("Anne Purple"))
+                .isInstanceOf(PayerThrottledException.class);
+        assertThatThrownBy(() -> limiter.acquire("Anne Purple"))
+                .isInstanceOf(PayerThrottledException.class);
+        assertThat(meterRegistry.counter("payment.rate.limit.throttled", "limit", "payer").count()).isEqualTo(2);
+        // the second rejection is answered from the denial held locally
+        assertThat(calls.get()).isEqualTo(2);
+        limiter.acquire("John Green");
+    }
+
+    @Test
+    void shouldKeepLeasesOfAtMostMaxPayers() {
+        SimpleMeterRegistry cappedRegistry = new SimpleMeterRegistry();
+        PayerRateLimiter capped = limiter(cappedRegistry, 1000, 1);
+
+        capped.acquire("John Green");
+        capped.acquire("Anne Purple");
+        capped.acquire("Anne Purple");
+
+        // past the cap every request goes to the shared bucket
+        assertThat(calls.get()).isEqualTo(3);
+        assertThat(cappedRegistry.get("payment.rate.limit.leases").gauge().value()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldPruneExpiredLeases() throws InterruptedException {
+        SimpleMeterRegistry shortRegistry = new SimpleMeterRegistry();
+        PayerRateLimiter shortLeases = limiter(shortRegistry, 10, 100_000);
+        shortLeases.acquire("John Green");
+
+        Thread.sleep(20);
+        shortLeases.pruneExpired();
+
+        assertThat(shortRegistry.get("payment.rate.limit.leases").gauge().value()).isZero();
+    }
+
+    @Test
+    void shouldThrottleBlockedPayersWithoutTheSharedBucket() {
+        PayerRateLimiter blocking = new PayerRateLimiter(null, new SimpleMeterRegistry(), 100, 100,
+                Map.of("Anne Purple", 0), 1000, 100_000) {
+            @Override
+            long take(String payerName, int rate, int burst, int wanted) {
+                calls.incrementAndGet();
+                return wanted;
+            }
+        };
+
+        assertThatThrownBy(() -> blocking.acquire("Anne Purple"))
+                .isInstanceOf(PayerThrottledException.class)
+                .extracting(ex -> ((PayerThrottledException) ex).getRetryAfterSeconds())
+                .isEqualTo(PayerRateLimiter.BLOCKED_RETRY_AFTER_SECONDS);
+        assertThat(calls.get()).isZero();
+    }
+
+    @Test
+    void shouldRejectNegativeRates() {
+        assertThatThrownBy(() -> new PayerRateLimiter(null, new SimpleMeterRegistry(), 100, 100,
+                Map.of("Anne Purple", -1), 1000, 100_000))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new PayerRateLimiter(null, new SimpleMeterRegistry(), 0, 100,
+                Map.of(), 1000, 100_000))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    // rate 100/s with a one second lease: each shared call can lease up to 100 tokens
+    private PayerRateLimiter limiter(SimpleMeterRegistry registry, long leaseMillis, int maxPayers) {
+        return new PayerRateLimiter(null, registry, 100, 100, Map.of("Anne Purple", 10), leaseMillis, maxPayers) {
+            @Override
+            long take(String payerName, int rate, int burst, int wanted) {
+                calls.incrementAndGet();
+                long left = buckets.getOrDefault(payerName, (long) burst);
+                long granted = Math.min(wanted, left);
+                buckets.put(payerName, left - granted);
+                return granted;
+            }
+        };
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.payment;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PayerSearchIndexTest {
+
+    final PayerSearchIndex index = new PayerSearchIndex(null);
+
+    @BeforeEach
+    void setUp() {
+        index.add(hit(184482812, "John Green"));
+        index.add(hit(184482843, "John Green"));
+        index.add(hit(982834112, "Anne Purple"));
+        index.add(hit(982834199, "João  Émerson"));
+    }
+
+    @Test
+    void shouldFindByPrefixIgnoringCase() {
+        // hits come in key order, "joao emerson" sorts before "john green"
+        assertThat(index.search("JO", 0, 10))
+                .extracting(PayerSearchHit::paymentNumber)
+                .containsExactly(982834199, 184482812, 184482843);
+    }
+
+    @Test
+    void shouldFindByAnyWordIgnoringAccents() {
+        assertThat(index.search("emer", 0, 10))
+                .extracting(PayerSearchHit::payerName)
+                .containsExactly("João  Émerson");
+        assertThat(index.search("joao e", 0, 10)).hasSize(1);
+    }
+
+    @Test
+    void shouldPageResults() {
+        List<PayerSearchHit> secondPage = index.search("john", 1, 1);
+        assertThat(secondPage)
+                .extracting(PayerSearchHit::paymentNumber)
+                .containsExactly(184482843);
+    }
+
+    @Test
+    void shouldNotMatchBlankPrefix() {
+        assertThat(index.search("  ", 0, 10)).isEmpty();
+    }
+
+    private PayerSearchHit hit(int paymentNumber, String payerName) {
+        return PayerSearchHit
+                .builder()
+                .id(UUID.randomUUID())
+                .paymentNumber(paymentNumber)
+                .payerName(payerName)
+                .build();
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.payment;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ActiveProfiles({"test"})
+@SpringBootTest
+class PaymentCacheWarmerTest {
+
+    @Autowired
+    PaymentRepository repository;
+
+    @Autowired
+    PaymentMapper paymentMapper;
+
+    @Autowired
+    PaymentExistenceFilter existenceFilter;
+
+    final Map<String, PaymentDto> redis = new ConcurrentHashMap<>();
+
+    final RedisLookupCache cache = new RedisLookupCache(null, new SimpleMeterRegistry(), 5, 50, 3, 60_000, 4, 100, 2_000) {
+        @Override
+        void writeAll(Map<String, PaymentDto> entries) {
+            redis.putAll(entries);
+        }
+
+        @Override
+        void delete(List<String> keys) {
+            keys.forEach(redis::remove);
+        }
+    };
+
+    @BeforeEach
+    void setUp() {
+        repository.deleteAll();
+    }
+
+    @AfterEach
+    void tearDown() {
+        cache.shutdown();
+    }
+
+    @Test
+    void shouldWarmInFlightAndMostRecentPayments() throws InterruptedException {
+        Payment settled = save(States.AUTH_AUTHORIZED);
+        Payment preAuthorizing = save(States.PRE_AUTH);
+        Payment created = save(States.NEW);
+        Payment declined = save(States.AUTH_ERROR);
+        Payment authorized = save(States.AUTH_AUTHORIZED);
+
+        // page size 2 keeps every reader paging, recent budget 2 stops before the settled payment
+        new PaymentCacheWarmer(repository, paymentMapper, cache, existenceFilter, new SimpleMeterRegistry(),
+                true, 2, 100, 2, 4, 5_000).warmUp();
+
+        assertThat(redis).containsKeys(
+                preAuthorizing.getId().toString(), preAuthorizing.getPaymentNumber().toString(),
+                created.getId().toString(), created.getPaymentNumber().toString(),
+                declined.getId().toString(), declined.getPaymentNumber().toString(),
+                authorized.getId().toString(), authorized.getPaymentNumber().toString());
+        assertThat(redis).doesNotContainKeys(settled.getId().toString(), settled.getPaymentNumber().toString());
+        assertThat(redis.get(created.getId().toString()).paymentNumber()).isEqualTo(created.getPaymentNumber());
+    }
+
+    private Payment save(States state) throws InterruptedException {
+        // creation timestamps have to differ for the recent ones to have an order
+        Thread.sleep(5);
+        return repository.save(Payment
+                .builder()
+                .amount(new BigDecimal("4.5"))
+                .paymentNumber(200_000_000 + (int) repository.count())
+                .payerName("John Green")
+                .paymentState(state)
+                .build());
+    }
+}
@@ -6,6 +6,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -124,4 +126,38 @@ class PaymentControllerTest extends PaymentTest{
         assertThat(getResponse.getStatusCode()).isEqualTo(HttpStatus.OK);
     }
 
-}
\ No newline at end of file
+    @Test
+    void shouldAnswerNotModifiedForCurrentEtag() {
+        String url = String.format("%s/find?number=%d", path, paymentList.get(1).getPaymentNumber());
+        ResponseEntity<PaymentDto> first = restTemplate.getForEntity(url, PaymentDto.class);
+        String etag = first.getHeaders().getETag();
+        assertThat(etag).isNotNull().doesNotStartWith("W/");
+
+        ResponseEntity<PaymentDto> second = restTemplate
+                .exchange(url, HttpMethod.GET, new HttpEntity<>(ifNoneMatch(etag)), PaymentDto.class);
+        assertThat(second.getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+        assertThat(second.getBody()).isNull();
+    }
+
+    @Test
+    void shouldChangeWeakEtagOfPayerPageAfterCreate() {
+        String url = String.format("%s/find/name/%s?page=0&size=10", path, paymentList.get(0).getPayerName());
+        String etag = restTemplate.getForEntity(url, String.class).getHeaders().getETag();
+        assertThat(etag).startsWith("W/");
+        assertThat(restTemplate
+                .exchange(url, HttpMethod.GET, new HttpEntity<>(ifNoneMatch(etag)), String.class)
+                .getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+
+        restTemplate.postForEntity(path, dto, Void.class);
+
+        assertThat(restTemplate
+                .exchange(url, HttpMethod.GET, new HttpEntity<>(ifNoneMatch(etag)), String.class)
+                .getStatusCode()).isEqualTo(HttpStatus.OK);
+    }
+
+    private HttpHeaders ifNoneMatch(String etag) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(etag);
+        return headers;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.payment;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PaymentExistenceFilterTest {
+
+    final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    final PaymentExistenceFilter filter = new PaymentExistenceFilter(null, meterRegistry, 10_000, 0.01);
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(filter, "negativeTtlMillis", 60_000L);
+        ReflectionTestUtils.setField(filter, "negativeMaxEntries", 100);
+        ReflectionTestUtils.setField(filter, "loadPageSize", 100);
+    }
+
+    @Test
+    void shouldLetEverythingThroughUntilLoaded() {
+        assertThat(filter.mightExist(UUID.randomUUID().toString())).isTrue();
+    }
+
+    @Test
+    void shouldLetEverythingThroughWhenTheLoadFails() {
+        // no repository, the load fails the way it would without a database
+        filter.load();
+
+        assertThat(filter.mightExist(UUID.randomUUID().toString())).isTrue();
+    }
+
+    @Test
+    void shouldNeverRejectKnownPayments() {
+        UUID id = UUID.randomUUID();
+        filter.add(id, 184482812);
+        filter.markLoaded();
+
+        assertThat(filter.mightExist(id.toString())).isTrue();
+        assertThat(filter.mightExist("184482812")).isTrue();
+    }
+
+    @Test
+    void shouldRejectMostUnknownPayments() {
+        IntStream.range(0, 5_000).forEach(i -> filter.add(UUID.randomUUID(), 100_000_000 + i));
+        filter.markLoaded();
+
+        long passed = IntStream
+                .range(0, 10_000)
+                .filter(i -> filter.mightExist(UUID.randomUUID().toString()))
+                .count();
+        assertThat(passed).isLessThan(200);
+    }
+
+    @Test
+    void shouldKeepTheFalsePositiveRateAtTheExpectedNumberOfPayments() {
+        // every payment puts its id and its number in
+        IntStream.range(0, 10_000).forEach(i -> filter.add(UUID.randomUUID(), 100_000_000 + i));
+        filter.markLoaded();
+
+        long passed = IntStream
+                .range(0, 10_000)
+                .filter(i -> filter.mightExist(UUID.randomUUID().toString()))
+                .count();
+        assertThat(passed).isLessThan(200);
+    }
+
+    @Test
+    void shouldRememberMissesUntilThePaymentIsCreated() {
+        UUID id = UUID.randomUUID();
+        filter.add(id, 184482812);
+        filter.markLoaded();
+
+        filter.recordMissing("184482812");
+        assertThat(filter.mightExist("184482812")).isFalse();
+        assertThat(meterRegistry.get("payment.lookup.rejected").tag("by", "negative-cache").counter().count()).isEqualTo(1);
+
+        filter.add(id, 184482812);
+        assertThat(filter.mightExist("184482812")).isTrue();
+    }
+}
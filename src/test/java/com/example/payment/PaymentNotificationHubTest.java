@@ -0,0 +1,50 @@
+package com.example.payment;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PaymentNotificationHubTest {
+
+    final PaymentNotificationHub hub = new PaymentNotificationHub(null, null, null, null, new SimpleMeterRegistry(), 60_000, 1, 10);
+
+    @AfterEach
+    void tearDown() {
+        hub.shutdown();
+    }
+
+    @Test
+    void shouldCompleteTheStreamOfAnAlreadyAuthorizedPayment() {
+        AtomicBoolean completed = new AtomicBoolean();
+        SseEmitter emitter = new SseEmitter() {
+            @Override
+            public void complete() {
+                completed.set(true);
+                super.complete();
+            }
+        };
+        PaymentDto current = new PaymentMapperImpl().entityToDto(Payment
+                .builder()
+                .id(UUID.randomUUID())
+                .paymentNumber(100_000_000)
+                .amount(new BigDecimal("4.5"))
+                .payerName("John Green")
+                .paymentState(States.AUTH_AUTHORIZED)
+                .timestamp(Instant.now())
+                .version(2L)
+                .build());
+
+        hub.sendSnapshot(emitter, current);
+
+        assertThat(current.state()).isEqualTo(States.AUTH_AUTHORIZED);
+        assertThat(completed).isTrue();
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.payment;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the JSON API over HTTP/1.1 with the binary RPC over HTTP/2 on the same running context:
+ * lookup latency one call at a time, then create throughput, REST one request per payment against
+ * RPC as one stream of create frames. Needs Redis and a broker like the controller tests.
+ */
+@ActiveProfiles({"test", "redis"})
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class PaymentRpcBenchmarkTest {
+
+    static final int SEEDED = 200;
+    static final int LOOKUPS = 5_000;
+    static final int CREATES = 1_000;
+
+    @LocalServerPort
+    int port;
+
+    final HttpClient rest = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    final HttpClient rpc = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+
+    @Test
+    void shouldCompareRestWithRpc() throws Exception {
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < SEEDED; i++){
+            HttpResponse<Void> created = rest.send(restCreate(i), HttpResponse.BodyHandlers.discarding());
+            String location = created.headers().firstValue("Location").orElseThrow();
+            ids.add(UUID.fromString(location.substring(location.lastIndexOf('/') + 1)));
+        }
+        // the first call upgrades the connection to h2c, the following ones reuse it
+        rpc.send(rpcCall(PaymentRpc.frame(PaymentRpc.GET_BY_ID, out -> PaymentRpc.writeId(out, ids.get(0)))),
+                HttpResponse.BodyHandlers.ofByteArray());
+
+        List<Long> restLatencies = new ArrayList<>();
+        List<Long> rpcLatencies = new ArrayList<>();
+        for (int i = 0; i < LOOKUPS; i++){
+            UUID id = ids.get(i % ids.size());
+            long start = System.nanoTime();
+            HttpResponse<byte[]> json = rest.send(HttpRequest
+                    .newBuilder(URI.create(base() + "/api/v1/payment/find/id/" + id))
+                    .GET()
+                    .build(), HttpResponse.BodyHandlers.ofByteArray());
+            restLatencies.add(System.nanoTime() - start);
+            assertThat(json.statusCode()).isEqualTo(200);
+
+            start = System.nanoTime();
+            HttpResponse<byte[]> binary = rpc.send(
+                    rpcCall(PaymentRpc.frame(PaymentRpc.GET_BY_ID, out -> PaymentRpc.writeId(out, id))),
+                    HttpResponse.BodyHandlers.ofByteArray());
+            rpcLatencies.add(System.nanoTime() - start);
+            assertThat(binary.body()[0]).isEqualTo(PaymentRpc.OK);
+        }
+
+        long start = System.nanoTime();
+        int restRejected = 0;
+        for (int i = 0; i < CREATES; i++){
+            if (rest.send(restCreate(SEEDED + i), HttpResponse.BodyHandlers.discarding()).statusCode() != 201){
+                restRejected++;
+            }
+        }
+        double restSeconds = (System.nanoTime() - start) / 1e9;
+
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(frames);
+        for (int i = 0; i < CREATES; i++){
+            String payer = payer(SEEDED + CREATES + i);
+            PaymentRpc.write(out, PaymentRpc.frame(PaymentRpc.CREATE, body -> {
+                PaymentRpc.writeAmount(body, new BigDecimal("4.50"));
+                body.writeUTF(payer);
+            }));
+        }
+        start = System.nanoTime();
+        HttpResponse<byte[]> streamed = rpc.send(HttpRequest
+                .newBuilder(URI.create(base() + "/rpc/v1/payment/stream"))
+                .header("Content-Type", PaymentRpc.MEDIA_TYPE)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(frames.toByteArray()))
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+        double rpcSeconds = (System.nanoTime() - start) / 1e9;
+        int rpcRejected = 0;
+        int results = 0;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(streamed.body()));
+        PaymentRpc.Frame result;
+        while ((result = PaymentRpc.read(in)) != null){
+            results++;
+            if (result.code() != PaymentRpc.OK){
+                rpcRejected++;
+            }
+        }
+
+        System.out.printf("lookup  rest/http1.1 p50 %.2fms p99 %.2fms | rpc/h2 p50 %.2fms p99 %.2fms%n",
+                percentile(restLatencies, 0.5), percentile(restLatencies, 0.99),
+                percentile(rpcLatencies, 0.5), percentile(rpcLatencies, 0.99));
+        System.out.printf("create  rest %.0f/s (%d rejected) | rpc stream %.0f/s (%d rejected)%n",
+                CREATES / restSeconds, restRejected, CREATES / rpcSeconds, rpcRejected);
+        assertThat(results).isEqualTo(CREATES);
+    }
+
+    private String base(){
+        return "http://localhost:" + port;
+    }
+
+    private HttpRequest restCreate(int i){
+        String json = "{\"amount\": 4.50, \"payer_name\": \"" + payer(i) + "\"}";
+        return HttpRequest
+                .newBuilder(URI.create(base() + "/api/v1/payment"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+    }
+
+    private HttpRequest rpcCall(PaymentRpc.Frame frame) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PaymentRpc.write(new DataOutputStream(bytes), frame);
+        return HttpRequest
+                .newBuilder(URI.create(base() + "/rpc/v1/payment"))
+                .header("Content-Type", PaymentRpc.MEDIA_TYPE)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(bytes.toByteArray()))
+                .build();
+    }
+
+    // a payer per payment keeps the per payer rate limit out of the comparison
+    private static String payer(int i){
+        StringBuilder name = new StringBuilder("Payer ");
+        do {
+            name.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        return name.toString();
+    }
+
+    private static double percentile(List<Long> latencies, double quantile){
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        return sorted.get(Math.max(0, (int) Math.ceil(quantile * sorted.size()) - 1)) / 1e6;
+    }
+}
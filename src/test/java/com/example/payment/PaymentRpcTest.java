@@ -0,0 +1,71 @@
+package com.example.payment;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PaymentRpcTest {
+
+    final PaymentRpcController controller = new PaymentRpcController(null, null, null);
+
+    @Test
+    void shouldReadFramesBackInOrder() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        PaymentRpc.write(out, PaymentRpc.frame(PaymentRpc.CREATE, body -> {
+            PaymentRpc.writeAmount(body, new BigDecimal("1234.56"));
+            body.writeUTF("Anne Purple");
+        }));
+        PaymentRpc.write(out, PaymentRpc.frame(PaymentRpc.GET_BY_NUMBER, body -> body.writeInt(184482843)));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        PaymentRpc.Frame create = PaymentRpc.read(in);
+        PaymentRpc.Frame get = PaymentRpc.read(in);
+
+        assertThat(create.code()).isEqualTo(PaymentRpc.CREATE);
+        DataInputStream createBody = new DataInputStream(new ByteArrayInputStream(create.body()));
+        assertThat(PaymentRpc.readAmount(createBody)).isEqualByComparingTo("1234.56");
+        assertThat(createBody.readUTF()).isEqualTo("Anne Purple");
+        assertThat(new DataInputStream(new ByteArrayInputStream(get.body())).readInt()).isEqualTo(184482843);
+        assertThat(PaymentRpc.read(in)).isNull();
+    }
+
+    @Test
+    void shouldRejectInvalidCreateBeforeAnyWork() throws IOException {
+        PaymentRpc.Frame result = controller.handle(PaymentRpc.frame(PaymentRpc.CREATE, body -> {
+            PaymentRpc.writeAmount(body, new BigDecimal("-1"));
+            body.writeUTF("Anne Purple");
+        }));
+
+        assertThat(result.code()).isEqualTo(PaymentRpc.INVALID);
+    }
+
+    @Test
+    void shouldAnswerMalformedCallsAsInvalid() {
+        PaymentRpc.Frame result = controller.handle(new PaymentRpc.Frame(PaymentRpc.GET_BY_ID, new byte[3]));
+
+        assertThat(result.code()).isEqualTo(PaymentRpc.INVALID);
+        assertThat(new String(result.body(), StandardCharsets.UTF_8)).startsWith("Malformed call");
+    }
+
+    @Test
+    void shouldAnswerUnknownNumbersFromTheExistenceFilter() throws IOException {
+        PaymentExistenceFilter existenceFilter = new PaymentExistenceFilter(null, new SimpleMeterRegistry(), 10_000, 0.01);
+        existenceFilter.markLoaded();
+
+        // no payment service, a call that got past the filter would fail instead
+        PaymentRpc.Frame result = new PaymentRpcController(null, existenceFilter, null)
+                .handle(PaymentRpc.frame(PaymentRpc.GET_BY_NUMBER, body -> body.writeInt(184482843)));
+
+        assertThat(result.code()).isEqualTo(PaymentRpc.NOT_FOUND);
+    }
+}
@@ -1,11 +1,18 @@
 package com.example.payment;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
 import org.springframework.test.context.ActiveProfiles;
+import reactor.core.publisher.Mono;
 
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
@@ -20,6 +27,19 @@ class PaymentServiceTest extends PaymentTest {
 
     @Autowired
     PaymentService paymentService;
+
+    @Autowired
+    PayerCacheGeneration payerCacheGeneration;
+
+    @Autowired
+    StateMachineFactory<States, Events> stateMachineFactory;
+
+    @BeforeEach
+    void invalidatePayerPages() {
+        // the fixtures are reset straight through the repository, bypassing the service
+        paymentList.forEach(payment -> payerCacheGeneration.bump(payment.getPayerName()));
+    }
+
     @Test
     void getPaymentByIdAfterCreate() {
 
@@ -42,4 +62,117 @@ class PaymentServiceTest extends PaymentTest {
         assertThat(paymentDtoSet.size()).isEqualTo(2);
     }
 
-}
\ No newline at end of file
+    @Test
+    void shouldSeeNewPaymentOnCachedPayerPage() {
+        assertThat(paymentService
+                .getAllPaymentByPayer(PageRequest.of(0, 5), "John Green")).hasSize(2);
+
+        paymentService.createPayment(dto);
+
+        assertThat(paymentService
+                .getAllPaymentByPayer(PageRequest.of(0, 5), "John Green")).hasSize(3);
+    }
+
+    @Test
+    void shouldApplyBatchOfPreAuthorizeResponsesInBulk() {
+        paymentList.forEach(payment -> payment.setPaymentState(States.PRE_AUTH));
+        paymentList.get(2).setPaymentState(States.AUTH);
+        repository.saveAll(paymentList);
+
+        paymentService.processPreAuthorizeResponses(List.of(
+                response(paymentList.get(0), true),
+                response(paymentList.get(1), false),
+                response(paymentList.get(2), false)));
+
+        assertThat(repository.findByPaymentNumber(184482812).get().getPaymentState()).isEqualTo(States.AUTH);
+        assertThat(repository.findByPaymentNumber(982834112).get().getPaymentState()).isEqualTo(States.PRE_AUTH_ERROR);
+        // already past pre-authorization, a late or repeated response must not move it back
+        assertThat(repository.findByPaymentNumber(184482843).get().getPaymentState()).isEqualTo(States.AUTH);
+    }
+
+    @Test
+    void shouldDropRedeliveredPreAuthorizeResponse() {
+        paymentList.forEach(payment -> payment.setPaymentState(States.PRE_AUTH));
+        repository.saveAll(paymentList);
+        PreAuthorizeResponse approved = response(paymentList.get(0), true);
+
+        paymentService.processPreAuthorizeResponses(List.of(approved));
+        Payment payment = repository.findByPaymentNumber(184482812).get();
+        payment.setPaymentState(States.PRE_AUTH);
+        repository.save(payment);
+        paymentService.processPreAuthorizeResponses(List.of(approved));
+
+        // the redelivery is recognised by its response id and never reaches the payment
+        assertThat(repository.findByPaymentNumber(184482812).get().getPaymentState()).isEqualTo(States.PRE_AUTH);
+    }
+
+    @Test
+    void shouldSettleAuthorizeBatchOnlyOnce() {
+        paymentList.forEach(payment -> payment.setPaymentState(States.AUTH));
+        paymentList.get(2).setPaymentState(States.AUTH_ERROR);
+        repository.saveAll(paymentList);
+        AuthorizeBatchResponse batch = AuthorizeBatchResponse
+                .builder()
+                .batchId(UUID.randomUUID())
+                .results(List.of(
+                        result(paymentList.get(0), true),
+                        result(paymentList.get(1), false),
+                        result(paymentList.get(2), true)))
+                .build();
+
+        paymentService.processAuthorizeBatchResponse(batch);
+        long version = repository.findByPaymentNumber(184482812).get().getVersion();
+        paymentService.processAuthorizeBatchResponse(batch);
+
+        assertThat(repository.findByPaymentNumber(184482812).get().getPaymentState()).isEqualTo(States.AUTH_AUTHORIZED);
+        assertThat(repository.findByPaymentNumber(982834112).get().getPaymentState()).isEqualTo(States.AUTH_ERROR);
+        // settled before the batch arrived, and the redelivery finds nothing left in AUTH to move
+        assertThat(repository.findByPaymentNumber(184482843).get().getPaymentState()).isEqualTo(States.AUTH_ERROR);
+        assertThat(repository.findByPaymentNumber(184482812).get().getVersion()).isEqualTo(version);
+    }
+
+    @Test
+    void shouldNotAuthorizeAPaymentTwiceOnAReplayedResponse() {
+        Payment payment = paymentList.get(0);
+        payment.setPaymentState(States.AUTH);
+        repository.save(payment);
+        long version = repository.findByPaymentNumber(184482812).get().getVersion();
+
+        // the one-by-one path replaying a response the bulk move applied already
+        StateMachine<States, Events> sm = stateMachineFactory.getStateMachine(payment.getId());
+        sm.getStateMachineAccessor().doWithAllRegions(sma -> sma
+                .resetStateMachineReactively(new DefaultStateMachineContext<>(States.PRE_AUTH, null, null, null))
+                .block());
+        sm.startReactively().block();
+        sm.sendEvent(Mono.just(MessageBuilder
+                .withPayload(Events.PRE_AUTH_APPROVED)
+                .setHeader(StateMachineConfig.PAYMENT_HEADER, payment.getPaymentNumber())
+                .setHeader(StateMachineConfig.PAYER_HEADER, payment.getPayerName())
+                .setHeader(StateMachineConfig.AMOUNT_HEADER, payment.getAmount())
+                .build())).blockLast();
+
+        assertThat(repository.findByPaymentNumber(184482812).get().getPaymentState()).isEqualTo(States.AUTH);
+        assertThat(repository.findByPaymentNumber(184482812).get().getVersion()).isEqualTo(version);
+        assertThat(sm.getExtendedState().getVariables()).doesNotContainKey(StateMachineConfig.SKIPPED_VARIABLE);
+    }
+
+    private AuthorizeResult result(Payment payment, boolean authorized) {
+        return new AuthorizeResult(response(payment, authorized).paymentDto(), authorized);
+    }
+
+    private PreAuthorizeResponse response(Payment payment, boolean approved) {
+        return PreAuthorizeResponse
+                .builder()
+                .responseId(UUID.randomUUID())
+                .paymentDto(PaymentDto
+                        .builder()
+                        .id(payment.getId())
+                        .paymentNumber(payment.getPaymentNumber())
+                        .amount(payment.getAmount())
+                        .payerName(payment.getPayerName())
+                        .build())
+                .paymentApprove(approved)
+                .build();
+    }
+
+}
@@ -14,6 +14,8 @@ public abstract class PaymentTest {
 
     @Autowired
     PaymentRepository repository;
+    @Autowired(required = false)
+    PaymentExistenceFilter existenceFilter;
     boolean enableAutoCreate = false;
 
     final PaymentDto dto;
@@ -95,6 +97,10 @@ public abstract class PaymentTest {
             repository.deleteAll();
             repository.saveAll(paymentList);
             assertThat(repository.count()).isEqualTo(3);
+            if (existenceFilter != null){
+                // rows saved behind the service's back are unknown to the lookup filter
+                paymentList.forEach(payment -> existenceFilter.add(payment.getId(), payment.getPaymentNumber()));
+            }
 
         }
     }
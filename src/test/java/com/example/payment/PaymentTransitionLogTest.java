@@ -0,0 +1,115 @@
+package com.example.payment;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@ActiveProfiles({"test"})
+@SpringBootTest
+class PaymentTransitionLogTest {
+
+    @Autowired
+    PaymentRepository repository;
+
+    @Autowired
+    PaymentTransitionRepository transitionRepository;
+
+    @Autowired
+    PaymentTransitionLog transitionLog;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @BeforeEach
+    void setUp() {
+        transitionRepository.deleteAll();
+        repository.deleteAll();
+    }
+
+    @Test
+    void shouldReturnTransitionsInTheOrderTheyWereAppended() {
+        Payment payment = save(States.AUTH_AUTHORIZED);
+
+        transitionLog.flush(List.of(
+                transition(payment, States.NEW, States.PRE_AUTH, Events.PRE_AUTHORIZE),
+                transition(payment, States.PRE_AUTH, States.AUTH, Events.PRE_AUTH_APPROVED),
+                transition(payment, States.AUTH, States.AUTH_AUTHORIZED, Events.AUTH_APPROVED)));
+
+        List<PaymentTransitionDto> history = paymentService.getPaymentHistory(payment.getId());
+
+        assertThat(history).extracting(PaymentTransitionDto::to)
+                .containsExactly(States.PRE_AUTH, States.AUTH, States.AUTH_AUTHORIZED);
+        assertThat(history).extracting(PaymentTransitionDto::sequence).isSorted();
+    }
+
+    @Test
+    void shouldRebuildStateFromTheLastTransition() {
+        Payment drifted = save(States.PRE_AUTH);
+        Payment current = save(States.PRE_AUTH_ERROR);
+        transitionLog.flush(List.of(
+                transition(drifted, States.NEW, States.PRE_AUTH, Events.PRE_AUTHORIZE),
+                transition(current, States.NEW, States.PRE_AUTH, Events.PRE_AUTHORIZE),
+                transition(current, States.PRE_AUTH, States.PRE_AUTH_ERROR, Events.PRE_AUTH_DECLINED),
+                transition(drifted, States.PRE_AUTH, States.AUTH, Events.PRE_AUTH_APPROVED)));
+
+        int updated = transitionLog.rebuildProjection();
+
+        assertThat(updated).isEqualTo(1);
+        assertThat(repository.findById(drifted.getId()).get().getPaymentState()).isEqualTo(States.AUTH);
+        assertThat(repository.findById(current.getId()).get().getPaymentState()).isEqualTo(States.PRE_AUTH_ERROR);
+    }
+
+    @Test
+    void shouldAppendTheRestWhenOneRowIsRejected() {
+        Payment payment = save(States.AUTH);
+        List<PaymentTransition> batch = new ArrayList<>(List.of(
+                transition(payment, States.NEW, States.PRE_AUTH, Events.PRE_AUTHORIZE),
+                transition(payment, null, States.PRE_AUTH, Events.PRE_AUTHORIZE),
+                transition(payment, States.PRE_AUTH, States.AUTH, Events.PRE_AUTH_APPROVED)));
+
+        transitionLog.flush(batch);
+
+        assertThat(batch).isEmpty();
+        assertThat(paymentService.getPaymentHistory(payment.getId())).extracting(PaymentTransitionDto::to)
+                .containsExactly(States.PRE_AUTH, States.AUTH);
+    }
+
+    @Test
+    void shouldNotFindHistoryOfUnknownPayment() {
+        assertThatThrownBy(() -> paymentService.getPaymentHistory(UUID.randomUUID()))
+                .isInstanceOf(ResourceNotFoundException.class);
+    }
+
+    private Payment save(States state){
+        return repository.save(Payment
+                .builder()
+                .amount(new BigDecimal("4.5"))
+                .paymentNumber(100_000_000 + (int) repository.count())
+                .payerName("John Green")
+                .paymentState(state)
+                .build());
+    }
+
+    private static PaymentTransition transition(Payment payment, States from, States to, Events event){
+        return PaymentTransition
+                .builder()
+                .paymentId(payment.getId())
+                .paymentNumber(payment.getPaymentNumber())
+                .fromState(from)
+                .toState(to)
+                .event(event)
+                .occurredAt(Instant.now())
+                .build();
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.payment;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ActiveProfiles({"test"})
+@SpringBootTest
+class PaymentWriteBehindBufferTest {
+
+    static final int ROWS = 2_000;
+    static final int BATCH = 200;
+
+    @Autowired
+    PaymentRepository repository;
+
+    @Autowired
+    PaymentWriteBehindBuffer writeBehindBuffer;
+
+    @BeforeEach
+    void setUp() {
+        repository.deleteAll();
+    }
+
+    @Test
+    void shouldReportFailedRowsAndCommitTheRest() {
+        List<PendingCreate> batch = new ArrayList<>();
+        List<UUID> committed = new ArrayList<>();
+        List<UUID> failed = new ArrayList<>();
+        for (int i = 0; i < 3; i++){
+            Payment payment = payment(100_000_000);
+            batch.add(new PendingCreate(payment, p -> committed.add(p.getId()), p -> failed.add(p.getId())));
+        }
+
+        writeBehindBuffer.flush(batch);
+
+        assertThat(committed).hasSize(1);
+        assertThat(failed).hasSize(2);
+        assertThat(writeBehindBuffer.status(failed.get(0)).state()).isEqualTo(AsyncCreateState.FAILED);
+        assertThat(repository.count()).isEqualTo(1);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void shouldCommitMoreRowsPerSecondThanSingleInserts() {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROWS; i++){
+            repository.save(Payment
+                    .builder()
+                    .amount(new BigDecimal("4.5"))
+                    .paymentNumber(200_000_000 + i)
+                    .payerName("John Green")
+                    .paymentState(States.NEW)
+                    .build());
+        }
+        long singleNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<PendingCreate> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < ROWS; i++){
+            batch.add(new PendingCreate(payment(300_000_000 + i), p -> { }, p -> { }));
+            if (batch.size() == BATCH){
+                writeBehindBuffer.flush(batch);
+                batch = new ArrayList<>(BATCH);
+            }
+        }
+        long groupNanos = System.nanoTime() - start;
+
+        assertThat(repository.count()).isEqualTo(2L * ROWS);
+        // ROWS commits against ROWS / BATCH of them
+        assertThat(groupNanos).isLessThan(singleNanos);
+    }
+
+    private Payment payment(int paymentNumber) {
+        return Payment
+                .builder()
+                .id(UUID.randomUUID())
+                .amount(new BigDecimal("4.5"))
+                .paymentNumber(paymentNumber)
+                .payerName("John Green")
+                .paymentState(States.NEW)
+                .timestamp(Instant.now())
+                .build();
+    }
+}
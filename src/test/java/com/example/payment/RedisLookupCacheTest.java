@@ -0,0 +1,169 @@
+package com.example.payment;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RedisLookupCacheTest {
+
+    final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    final Map<String, PaymentDto> redis = new ConcurrentHashMap<>();
+    final AtomicInteger writes = new AtomicInteger();
+    volatile long readDelayMillis;
+    volatile boolean failing;
+
+    final RedisLookupCache cache = new RedisLookupCache(null, meterRegistry, 5, 50, 3, 60_000, 4, 100, 2_000) {
+        @Override
+        PaymentDto read(String key) {
+            sleep(readDelayMillis);
+            if (failing){
+                throw new IllegalStateException("connection refused");
+            }
+            return redis.get(key);
+        }
+
+        @Override
+        void write(String key, PaymentDto dto) {
+            sleep(20);
+            writes.incrementAndGet();
+            redis.put(key, dto);
+        }
+
+        @Override
+        void writeAll(Map<String, PaymentDto> entries) {
+            redis.putAll(entries);
+        }
+
+        @Override
+        void delete(List<String> keys) {
+            keys.forEach(redis::remove);
+        }
+    };
+
+    @AfterEach
+    void tearDown() {
+        cache.shutdown();
+    }
+
+    @Test
+    void shouldAnswerFromTheDatabaseWhenRedisIsSlow() {
+        redis.put("1", payment("Cached"));
+        readDelayMillis = 500;
+
+        long start = System.nanoTime();
+        PaymentDto found = cache.lookup("1", () -> payment("Loaded"));
+        long tookMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertThat(found.payerName()).isEqualTo("Loaded");
+        assertThat(tookMillis).isLessThan(200);
+        assertThat(meterRegistry.counter("payment.redis.bypass", "reason", "hedged").count()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldAnswerFromTheDatabaseWhileEveryReadWorkerIsStuck() throws InterruptedException {
+        redis.put("1", payment("Cached"));
+        readDelayMillis = 500;
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            // twice the four read workers, the rest of the slow reads wait in the read queue
+            for (int i = 0; i < 8; i++){
+                callers.execute(() -> cache.lookup("1", () -> payment("Loaded")));
+            }
+            Thread.sleep(20);
+
+            long start = System.nanoTime();
+            PaymentDto found = cache.lookup("1", () -> payment("Loaded"));
+            long tookMillis = (System.nanoTime() - start) / 1_000_000;
+
+            assertThat(found.payerName()).isEqualTo("Loaded");
+            assertThat(tookMillis).isLessThan(200);
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    void shouldFillWhatTheDatabaseAnsweredOnTheHedge() throws InterruptedException {
+        readDelayMillis = 100;
+
+        cache.lookup("1", () -> payment("Loaded"));
+        Thread.sleep(200);
+
+        assertThat(redis.get("1").payerName()).isEqualTo("Loaded");
+    }
+
+    @Test
+    void shouldBypassRedisOnceTheBreakerOpens() throws InterruptedException {
+        failing = true;
+        for (int i = 0; i < 3; i++){
+            cache.lookup("1", () -> payment("Loaded"));
+        }
+        Thread.sleep(50);
+
+        assertThat(cache.isOpen()).isTrue();
+        cache.lookup("1", () -> payment("Loaded"));
+        assertThat(meterRegistry.counter("payment.redis.bypass", "reason", "open").count()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldCoalesceFillsOfTheSameKey() throws InterruptedException {
+        cache.fill("blocker", payment("Other"));
+        for (int i = 0; i < 10; i++){
+            cache.fill("1", payment("Version " + i));
+        }
+        Thread.sleep(200);
+
+        assertThat(writes.get()).isEqualTo(2);
+        assertThat(redis.get("1").payerName()).isEqualTo("Version 9");
+    }
+
+    @Test
+    void shouldDropQueuedFillOnEviction() throws InterruptedException {
+        // generated up front, the first random UUID can take longer than the blocking write
+        UUID id = UUID.randomUUID();
+        cache.fill("blocker", payment("Other"));
+        cache.fill("1", payment("Stale"));
+        cache.evict(id, 1);
+        Thread.sleep(200);
+
+        assertThat(redis).doesNotContainKey("1");
+    }
+
+    @Test
+    void shouldNotWarmKeysEvictedSinceTheyWereRead() {
+        cache.beginWarmUp();
+        cache.evict(UUID.randomUUID(), 1);
+        cache.warm(Map.of("1", payment("Stale"), "2", payment("Current")));
+        cache.endWarmUp();
+
+        assertThat(redis).doesNotContainKey("1").containsKey("2");
+    }
+
+    private static PaymentDto payment(String payerName){
+        return PaymentDto
+                .builder()
+                .paymentNumber(1)
+                .amount(new BigDecimal("4.5"))
+                .payerName(payerName)
+                .build();
+    }
+
+    private static void sleep(long millis){
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.payment;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ActiveProfiles({"test", "replica"})
+@SpringBootTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:primary;DB_CLOSE_DELAY=-1",
+        "app.props.datasource.replica.urls=jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1",
+        "app.props.datasource.replica.username=sa",
+        "app.props.datasource.replica.password=",
+        "app.props.datasource.replica.lag-query=",
+        // health is set by the tests, the scheduled probe would overwrite it
+        "app.props.datasource.replica.probe-enabled=false"
+})
+class ReplicaRoutingDataSourceTest {
+
+    @Autowired
+    ReplicaRoutingDataSource routingDataSource;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @AfterEach
+    void tearDown() {
+        routingDataSource.markHealth("replica-0", true);
+    }
+
+    @Test
+    void shouldRouteReadOnlyTransactionsToReplica() {
+        assertThat(connectionUrl(true)).startsWith("jdbc:h2:mem:replica");
+    }
+
+    @Test
+    void shouldKeepWritesOnPrimary() {
+        assertThat(connectionUrl(false)).startsWith("jdbc:h2:mem:primary");
+    }
+
+    @Test
+    void shouldFallbackToPrimaryWhenReplicaIsStale() {
+        routingDataSource.markHealth("replica-0", false);
+        assertThat(connectionUrl(true)).startsWith("jdbc:h2:mem:primary");
+    }
+
+    private String connectionUrl(boolean readOnly) {
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setReadOnly(readOnly);
+        return template.execute(status -> {
+            try (Connection con = routingDataSource.getConnection()) {
+                return con.getMetaData().getURL();
+            } catch (SQLException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+    }
+}
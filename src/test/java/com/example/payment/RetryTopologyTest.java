@@ -0,0 +1,49 @@
+package com.example.payment;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.ListenerExecutionFailedException;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RetryTopologyTest {
+
+    final Map<String, String> sent = new ConcurrentHashMap<>();
+
+    final RetryTopology retryTopology = new RetryTopology(new RabbitTemplate() {
+        @Override
+        public void send(String exchange, String routingKey, Message message) {
+            sent.put(new String(message.getBody()), routingKey);
+        }
+    }, new SimpleMeterRegistry(), "payment", 4, 1000);
+
+    @Test
+    void shouldMoveEveryMessageOfAFailedBatch() {
+        List<Message> batch = List.of(message("first"), message("second"), message("third"));
+
+        assertThatThrownBy(() -> retryTopology.handleError(new ListenerExecutionFailedException(
+                "Batch not processed", new QueryTimeoutException("database is down"), batch.toArray(Message[]::new))))
+                .isInstanceOf(AmqpRejectAndDontRequeueException.class);
+
+        assertThat(sent).containsOnlyKeys("first", "second", "third");
+        assertThat(sent.values()).containsOnly("payment.retry.1");
+        assertThat(batch).allMatch(message -> message.getMessageProperties()
+                .getHeader(RetryTopology.QUEUE_HEADER).equals(RabbitConfig.PAYMENT_PRE_AUTHORIZE_RESPONSE_QUEUE));
+    }
+
+    private static Message message(String body) {
+        MessageProperties properties = new MessageProperties();
+        properties.setConsumerQueue(RabbitConfig.PAYMENT_PRE_AUTHORIZE_RESPONSE_QUEUE);
+        return new Message(body.getBytes(), properties);
+    }
+}
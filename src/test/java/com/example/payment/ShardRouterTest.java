@@ -0,0 +1,51 @@
+package com.example.payment;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ShardRouterTest {
+
+    final ShardRouter router = new ShardRouter();
+    final List<String> nodes = List.of("node-a", "node-b", "node-c");
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(router, "enabled", true);
+        ReflectionTestUtils.setField(router, "shardCount", 64);
+    }
+
+    @Test
+    void shouldAssignEveryShardToExactlyOneNode() {
+        Set<Integer> all = new HashSet<>();
+        int total = 0;
+        for (String node : nodes){
+            Set<Integer> owned = router.ownedShards(node, nodes);
+            total += owned.size();
+            all.addAll(owned);
+        }
+        assertThat(total).isEqualTo(64);
+        assertThat(all).hasSize(64);
+    }
+
+    @Test
+    void shouldOnlyMoveShardsOfTheLeavingNode() {
+        Set<Integer> before = router.ownedShards("node-a", nodes);
+        Set<Integer> after = router.ownedShards("node-a", List.of("node-a", "node-b"));
+
+        assertThat(after).containsAll(before);
+    }
+
+    @Test
+    void shouldRouteResponsesToTheShardOfThePayment() {
+        int shard = router.shardOf(184482812);
+        assertThat(router.replyRoutingKey(184482812)).isEqualTo(ShardRouter.SHARD_ROUTING_KEY_PREFIX + shard);
+        assertThat(ShardRouter.queueName(shard)).isEqualTo(ShardRouter.SHARD_QUEUE_PREFIX + shard);
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.payment;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StateRollupsTest {
+
+    final MovableClock clock = new MovableClock(Instant.parse("2023-10-01T12:00:00Z"));
+    final StateRollups rollups = new StateRollups(60, 10, clock);
+
+    @Test
+    void shouldSumCountsAndAmountsPerBucket() {
+        rollups.record(States.AUTH_AUTHORIZED, new BigDecimal("2.60"));
+        rollups.record(States.AUTH_AUTHORIZED, new BigDecimal("5"));
+        rollups.record(States.PRE_AUTH_ERROR, new BigDecimal("7.4"));
+        clock.now = clock.now.plusSeconds(1);
+        rollups.record(States.AUTH_AUTHORIZED, new BigDecimal("1"));
+
+        List<StateRollup> perSecond = rollups.series(RollupResolution.SECOND, 60);
+        assertThat(perSecond).hasSize(2);
+        assertThat(perSecond.get(0).counts()).containsEntry(States.AUTH_AUTHORIZED, 2L);
+        assertThat(perSecond.get(0).amounts()).containsEntry(States.AUTH_AUTHORIZED, new BigDecimal("7.60"));
+
+        List<StateRollup> perMinute = rollups.series(RollupResolution.MINUTE, 10);
+        assertThat(perMinute).hasSize(1);
+        assertThat(perMinute.get(0).bucketStart()).isEqualTo(Instant.parse("2023-10-01T12:00:00Z"));
+        assertThat(perMinute.get(0).counts()).containsEntry(States.AUTH_AUTHORIZED, 3L).containsEntry(States.PRE_AUTH_ERROR, 1L);
+    }
+
+    @Test
+    void shouldForgetBucketsOutsideTheRetention() {
+        rollups.record(States.AUTH, new BigDecimal("1"));
+        clock.now = clock.now.plusSeconds(61);
+        rollups.record(States.AUTH, new BigDecimal("1"));
+
+        assertThat(rollups.series(RollupResolution.SECOND, 600))
+                .extracting(StateRollup::bucketStart)
+                .containsExactly(clock.now);
+        assertThat(rollups.series(RollupResolution.MINUTE, 10)).hasSize(2);
+    }
+
+    @Test
+    void shouldMergeBucketsFromSeveralNodes() {
+        StateRollups otherNode = new StateRollups(60, 10, clock);
+        rollups.record(States.AUTH_ERROR, new BigDecimal("1.5"));
+        otherNode.record(States.AUTH_ERROR, new BigDecimal("2"));
+        otherNode.record(States.AUTH, new BigDecimal("3"));
+
+        List<StateRollup> merged = StateRollup.mergeAll(List.of(
+                rollups.series(RollupResolution.MINUTE, 10),
+                otherNode.series(RollupResolution.MINUTE, 10)));
+
+        assertThat(merged).hasSize(1);
+        assertThat(merged.get(0).counts()).containsEntry(States.AUTH_ERROR, 2L).containsEntry(States.AUTH, 1L);
+        assertThat(merged.get(0).amounts()).containsEntry(States.AUTH_ERROR, new BigDecimal("3.50"));
+    }
+
+    static class MovableClock extends Clock {
+        Instant now;
+
+        MovableClock(Instant now) {
+            this.now = now;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
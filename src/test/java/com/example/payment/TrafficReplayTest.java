@@ -0,0 +1,207 @@
+package com.example.payment;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Replays a journal written by TrafficJournal against a running instance, keeping the recorded
+ * spacing divided by replay.speed ("max" sends back to back). Captured payments carry their
+ * original payment numbers, so replay against an empty database. With replay.target=pre-authorize
+ * the captured requests are published onto the request queue and the run ends once every reply is
+ * on the response queue.
+ * Run with -Djournal=path/to/file.journal; when replay.baseline names an existing file the run
+ * fails if throughput drops or p99 grows by more than replay.tolerance, otherwise the results are
+ * written there as the new baseline.
+ */
+@EnabledIfSystemProperty(named = "journal", matches = ".+")
+class TrafficReplayTest {
+
+    static final String REQUEST_QUEUE = "pre_authorize";
+    static final String RESPONSE_QUEUE = "pre_authorize_resp";
+
+    @Test
+    void shouldKeepUpWithRecordedTraffic() throws Exception {
+        List<JournalRecord> records = TrafficJournal.read(Path.of(System.getProperty("journal")));
+        String speed = System.getProperty("replay.speed", "1");
+        double factor = "max".equals(speed) ? 0 : 1 / Double.parseDouble(speed);
+
+        Result result = "pre-authorize".equals(System.getProperty("replay.target", "payment"))
+                ? replayPreAuthorize(records, factor)
+                : replayPayments(records, factor);
+
+        System.out.printf("replayed %d requests in %.2fs, %.0f req/s, p50 %.1fms, p99 %.1fms%n",
+                result.count, result.seconds, result.throughput(), result.p50, result.p99);
+        compareWithBaseline(result);
+    }
+
+    private Result replayPayments(List<JournalRecord> records, double factor) throws Exception {
+        URI uri = URI.create(System.getProperty("replay.url", "http://localhost:8080/api/v1/payment"));
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+        List<CompletableFuture<Long>> sent = new ArrayList<>();
+        List<Long> failures = Collections.synchronizedList(new ArrayList<>());
+
+        long start = System.nanoTime();
+        for (JournalRecord record : records){
+            if (record.type() != JournalRecordType.CREATE && record.type() != JournalRecordType.CREATE_ASYNC){
+                continue;
+            }
+            pace(start, record.offsetNanos(), factor);
+            HttpRequest.Builder request = HttpRequest
+                    .newBuilder(uri)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(record.payload()));
+            if (record.type() == JournalRecordType.CREATE_ASYNC){
+                request.header("Prefer", "respond-async");
+            }
+            if (System.getProperty("replay.user") != null){
+                String credentials = System.getProperty("replay.user") + ":" + System.getProperty("replay.password", "");
+                request.header("Authorization", "Basic " + Base64
+                        .getEncoder()
+                        .encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+            }
+            long sentAt = System.nanoTime();
+            sent.add(client
+                    .sendAsync(request.build(), HttpResponse.BodyHandlers.discarding())
+                    .thenApply(response -> {
+                        if (response.statusCode() >= 400){
+                            failures.add((long) response.statusCode());
+                        }
+                        return System.nanoTime() - sentAt;
+                    }));
+        }
+        List<Long> latencies = new ArrayList<>();
+        for (CompletableFuture<Long> future : sent){
+            latencies.add(future.join());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        assertThat(failures).as("failed requests").isEmpty();
+        return Result.of(latencies, seconds);
+    }
+
+    private Result replayPreAuthorize(List<JournalRecord> records, double factor) throws Exception {
+        CachingConnectionFactory connectionFactory = new CachingConnectionFactory(
+                System.getProperty("replay.rabbit-host", "localhost"));
+        try {
+            RabbitTemplate rabbitTemplate = new RabbitTemplate(connectionFactory);
+            RabbitAdmin rabbitAdmin = new RabbitAdmin(connectionFactory);
+            rabbitAdmin.purgeQueue(RESPONSE_QUEUE, false);
+
+            MessageProperties properties = new MessageProperties();
+            properties.setContentType("application/json");
+
+            long start = System.nanoTime();
+            long count = 0;
+            for (JournalRecord record : records){
+                if (record.type() != JournalRecordType.PRE_AUTH_REQUEST){
+                    continue;
+                }
+                pace(start, record.offsetNanos(), factor);
+                rabbitTemplate.send("", REQUEST_QUEUE, new Message(record.payload(), properties));
+                count++;
+            }
+
+            long deadline = System.currentTimeMillis() + 120_000;
+            long replies = 0;
+            while (replies < count && System.currentTimeMillis() < deadline){
+                QueueInformation info = rabbitAdmin.getQueueInfo(RESPONSE_QUEUE);
+                replies = info == null ? 0 : info.getMessageCount();
+                Thread.sleep(20);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            assertThat(replies).isEqualTo(count);
+            // per request latency is in the payment.trace.hop metrics of payment core
+            return new Result(count, seconds, Double.NaN, Double.NaN);
+        } finally {
+            connectionFactory.destroy();
+        }
+    }
+
+    private static void pace(long start, long offsetNanos, double factor){
+        long due = start + (long) (offsetNanos * factor);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0){
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private void compareWithBaseline(Result result) throws IOException {
+        String baseline = System.getProperty("replay.baseline");
+        if (baseline == null){
+            return;
+        }
+        Path file = Path.of(baseline);
+        if (Files.notExists(file)){
+            Properties properties = new Properties();
+            properties.setProperty("throughput", String.valueOf(result.throughput()));
+            properties.setProperty("p99", String.valueOf(result.p99));
+            try (Writer writer = Files.newBufferedWriter(file)){
+                properties.store(writer, "traffic replay baseline");
+            }
+            return;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)){
+            properties.load(reader);
+        }
+        double tolerance = Double.parseDouble(System.getProperty("replay.tolerance", "0.2"));
+        double throughput = Double.parseDouble(properties.getProperty("throughput"));
+        assertThat(result.throughput())
+                .as("throughput against baseline %s", throughput)
+                .isGreaterThanOrEqualTo(throughput * (1 - tolerance));
+        if (!Double.isNaN(result.p99)){
+            double p99 = Double.parseDouble(properties.getProperty("p99"));
+            assertThat(result.p99)
+                    .as("p99 against baseline %s", p99)
+                    .isLessThanOrEqualTo(p99 * (1 + tolerance));
+        }
+    }
+
+    record Result(long count, double seconds, double p50, double p99) {
+
+        static Result of(List<Long> latencies, double seconds){
+            Collections.sort(latencies);
+            return new Result(latencies.size(), seconds, percentile(latencies, 0.5), percentile(latencies, 0.99));
+        }
+
+        private static double percentile(List<Long> sorted, double quantile){
+            if (sorted.isEmpty()){
+                return Double.NaN;
+            }
+            int index = (int) Math.ceil(quantile * sorted.size()) - 1;
+            return sorted.get(Math.max(index, 0)) / 1e6;
+        }
+
+        double throughput(){
+            return count / seconds;
+        }
+    }
+}
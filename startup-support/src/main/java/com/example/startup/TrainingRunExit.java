@@ -0,0 +1,42 @@
+package com.example.startup;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+
+/**
+ * Ends a class data sharing training run after every singleton is created but before the listener
+ * containers and the web server start, so the JVM archives the loaded classes. Compiled into both
+ * services from this shared source root and registered with @Import.
+ */
+@Slf4j
+public class TrainingRunExit implements SmartLifecycle {
+
+    @Value("${app.props.startup.exit-on-refresh:false}")
+    private boolean exitOnRefresh;
+    private volatile boolean running;
+
+    @Override
+    public void start() {
+        running = true;
+        if (exitOnRefresh){
+            log.info("Training run finished, exiting to dump the class data sharing archive");
+            System.exit(0);
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return Integer.MIN_VALUE;
+    }
+}